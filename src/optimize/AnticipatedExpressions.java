@@ -0,0 +1,26 @@
+package optimize;
+
+import joeq.Compiler.Quad.Quad;
+
+/**
+ * Anticipated (very busy) expressions: an expression is anticipated
+ * before a quad if every path from there computes it before anything
+ * kills it, so computing it there is safe and never wasted. A guarded
+ * expression is not anticipated above a quad that can throw, so a load
+ * never moves above its null or bounds check.
+ * <p>
+ * Backward; In = use | (Out & ~kill & ~barrier); meet is intersection;
+ * nothing is anticipated at the exit.
+ */
+public class AnticipatedExpressions extends ExpressionAnalysis {
+
+    public boolean isForward() { return false; }
+
+    protected boolean isUnion() { return false; }
+
+    protected void transfer(Quad q, ExpressionSet val) {
+        val.removeAll(expressions.getKillMask(q));
+        val.removeAll(expressions.getBarrierMask(q));
+        val.add(expressions.indexOf(q));
+    }
+}
@@ -0,0 +1,58 @@
+package optimize;
+
+import joeq.Compiler.Quad.*;
+
+/**
+ * Available expressions, assuming every anticipated expression is
+ * computed as early as possible: an expression is available after a
+ * quad if it is anticipated before the quad or available before it, and
+ * the quad does not kill it. The earliest placement of an expression is
+ * where it is anticipated but not yet available.
+ * <p>
+ * Forward; Out = (anticipated.In | In) & ~kill; meet is intersection;
+ * nothing is available at the entry.
+ */
+public class AvailableExpressions extends ExpressionAnalysis {
+
+    private final AnticipatedExpressions anticipated;
+
+    /** the earliest placements, by quad ID */
+    private ExpressionSet[] earliest;
+
+    /**
+     * @param anticipated the anticipated expressions, solved for the
+     * same CFG before this analysis runs
+     */
+    public AvailableExpressions(AnticipatedExpressions anticipated) {
+        this.anticipated = anticipated;
+    }
+
+    public boolean isForward() { return true; }
+
+    protected boolean isUnion() { return false; }
+
+    protected void transfer(Quad q, ExpressionSet val) {
+        val.addAll(anticipated.in(q));
+        val.removeAll(expressions.getKillMask(q));
+    }
+
+    /**
+     * Compute earliest = anticipated.In & ~In for every quad.
+     */
+    public void postprocess(ControlFlowGraph cfg) {
+        earliest = new ExpressionSet[info.getQuadIDLimit()];
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            ExpressionSet e = newTempVar();
+            e.copy(anticipated.in(q));
+            e.removeAll(in(q));
+            earliest[q.getID()] = e;
+        }
+    }
+
+    /**
+     * @return the expressions whose earliest placement is before a quad;
+     * the set belongs to the analysis and must not be modified
+     */
+    public ExpressionSet earliest(Quad q) { return earliest[q.getID()]; }
+}
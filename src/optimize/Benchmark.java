@@ -0,0 +1,286 @@
+package optimize;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import joeq.Class.*;
+import joeq.Compiler.Quad.*;
+import joeq.Main.Helper;
+
+/**
+ * Measures every solver and analysis pair on the methods of a set of
+ * classes. For each pair it reports the throughput in methods per second,
+ * the per-method latency, the allocation per method and the garbage
+ * collections during the measurement.
+ *
+ * Usage: java optimize.Benchmark [--warmup n] [--iterations n]
+ *        [--filter text] [class ...]
+ *
+ * The analyses' postprocess steps are skipped and their other output is
+ * discarded, so the numbers cover solving only and the null checker
+ * leaves the CFGs untouched between iterations.
+ */
+public class Benchmark {
+
+    /** A solver and analysis pair to measure.
+     */
+    public static abstract class Case {
+        private final String name;
+
+        public Case(String name) { this.name = name; }
+
+        public String getName() { return name; }
+
+        /** Create the solver with its analysis registered.
+         */
+        public abstract ControlFlowGraphVisitor newSolver();
+    }
+
+    /** A pair of a Flow solver and a Flow analysis.
+     */
+    private static abstract class FlowCase extends Case {
+        FlowCase(String name) { super(name); }
+
+        abstract Flow.Solver solver();
+        abstract Flow.Analysis analysis();
+
+        public ControlFlowGraphVisitor newSolver() {
+            Flow.Solver solver = solver();
+            solver.registerAnalysis(analysis());
+            return solver;
+        }
+    }
+
+    /** A pair of an ExFlow solver and an ExFlow analysis.
+     */
+    private static abstract class ExFlowCase extends Case {
+        ExFlowCase(String name) { super(name); }
+
+        abstract ExFlow.Solver solver();
+        abstract ExFlow.Analysis analysis();
+
+        public ControlFlowGraphVisitor newSolver() {
+            ExFlow.Solver solver = solver();
+            solver.registerAnalysis(analysis());
+            return solver;
+        }
+    }
+
+    /**
+     * @return all the solver and analysis pairs
+     */
+    public static List<Case> getCases() {
+        List<Case> cases = new ArrayList<Case>();
+        for (final String solver : new String[] { "ReferenceSolver", "BlockSolver" }) {
+            cases.add(new FlowCase(solver + "/Liveness") {
+                Flow.Solver solver() { return newFlowSolver(solver); }
+                Flow.Analysis analysis() {
+                    return new Liveness() {
+                        public void postprocess(ControlFlowGraph cfg) { }
+                    };
+                }
+            });
+            cases.add(new FlowCase(solver + "/ReachingDefinitions") {
+                Flow.Solver solver() { return newFlowSolver(solver); }
+                Flow.Analysis analysis() {
+                    return new ReachingDefinitions() {
+                        public void postprocess(ControlFlowGraph cfg) { }
+                    };
+                }
+            });
+            cases.add(new FlowCase(solver + "/ConstantProp") {
+                Flow.Solver solver() { return newFlowSolver(solver); }
+                Flow.Analysis analysis() {
+                    return new ConstantProp() {
+                        public void postprocess(ControlFlowGraph cfg) { }
+                    };
+                }
+            });
+        }
+        for (final boolean useWorklist : new boolean[] { false, true }) {
+            String solver = useWorklist ? "ExSolver" : "ExSolver(round-robin)";
+            cases.add(new ExFlowCase(solver + "/NullChecker") {
+                ExFlow.Solver solver() { return new ExSolver(useWorklist); }
+                ExFlow.Analysis analysis() {
+                    return new NullChecker() {
+                        public void postprocess(ControlFlowGraph cfg) { }
+                    };
+                }
+            });
+            cases.add(new ExFlowCase(solver + "/ConditionalConstantProp") {
+                ExFlow.Solver solver() { return new ExSolver(useWorklist); }
+                ExFlow.Analysis analysis() { return new ConditionalConstantProp(false); }
+            });
+        }
+        return cases;
+    }
+
+    private static Flow.Solver newFlowSolver(String name) {
+        if (name.equals("BlockSolver"))
+            return new BlockSolver();
+        return new ReferenceSolver();
+    }
+
+    /** The measurements of one case.
+     */
+    public static class Result {
+        /** the number of methods solved */
+        public long methods;
+        /** the total time in nanoseconds */
+        public long nanos;
+        /** the latency of every method solve in nanoseconds */
+        public long[] latencies;
+        /** the bytes allocated by the measuring thread, -1 if unknown */
+        public long allocatedBytes;
+        /** the number and total time of garbage collections */
+        public long gcCount, gcMillis;
+
+        public double methodsPerSecond() {
+            return nanos == 0 ? 0 : methods * 1e9 / nanos;
+        }
+
+        /**
+         * @param p the percentile, between 0 and 100
+         * @return the latency at the percentile in nanoseconds
+         */
+        public long percentile(double p) {
+            if (latencies.length == 0) return 0;
+            int i = (int)Math.ceil(p / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(i, latencies.length - 1))];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%10.1f methods/s", methodsPerSecond()));
+            sb.append(String.format("  latency mean %8.1f us, p50 %8.1f us, p99 %8.1f us",
+                                    methods == 0 ? 0 : nanos / 1e3 / methods,
+                                    percentile(50) / 1e3, percentile(99) / 1e3));
+            if (allocatedBytes >= 0) {
+                sb.append(String.format("  alloc %10.0f B/method, %8.1f MB/s",
+                                        methods == 0 ? 0 : (double)allocatedBytes / methods,
+                                        nanos == 0 ? 0 : allocatedBytes * 1e3 / nanos));
+            }
+            sb.append("  gc " + gcCount + " (" + gcMillis + " ms)");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Measure a case.
+     * @param c the case to measure
+     * @param cfgs the methods to solve
+     * @param warmup the number of unmeasured passes over all methods
+     * @param iterations the number of measured passes over all methods
+     * @return the measurements
+     */
+    public static Result measure(Case c, List<ControlFlowGraph> cfgs,
+                                 int warmup, int iterations) {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        }));
+        try {
+            return measure(c.newSolver(), cfgs, warmup, iterations);
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+
+    private static Result measure(ControlFlowGraphVisitor solver,
+                                  List<ControlFlowGraph> cfgs,
+                                  int warmup, int iterations) {
+        for (int i = 0; i < warmup; i++)
+            for (ControlFlowGraph cfg : cfgs)
+                solver.visitCFG(cfg);
+
+        Result result = new Result();
+        result.latencies = new long[cfgs.size() * iterations];
+        long gcCount = getGCCount(), gcMillis = getGCMillis();
+        long allocated = getAllocatedBytes();
+        int n = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (ControlFlowGraph cfg : cfgs) {
+                long start = System.nanoTime();
+                solver.visitCFG(cfg);
+                long latency = System.nanoTime() - start;
+                result.latencies[n++] = latency;
+                result.nanos += latency;
+            }
+        }
+        result.methods = n;
+        long allocatedAfter = getAllocatedBytes();
+        result.allocatedBytes = (allocated < 0 || allocatedAfter < 0)
+                                ? -1 : allocatedAfter - allocated;
+        result.gcCount = getGCCount() - gcCount;
+        result.gcMillis = getGCMillis() - gcMillis;
+        Arrays.sort(result.latencies);
+        return result;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 if
+     * the JVM does not report it
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+            if (sunBean.isThreadAllocatedMemorySupported()
+                && sunBean.isThreadAllocatedMemoryEnabled())
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long getGCCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, bean.getCollectionCount());
+        return count;
+    }
+
+    private static long getGCMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, bean.getCollectionTime());
+        return millis;
+    }
+
+    public static void main(String[] args) {
+        int warmup = 5, iterations = 10;
+        String filter = null;
+        List<String> classNames = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--warmup"))
+                warmup = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--iterations"))
+                iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--filter"))
+                filter = args[++i];
+            else
+                classNames.add(args[i]);
+        }
+        if (classNames.isEmpty()) {
+            classNames.add("optimize.test.SkipList");
+            classNames.add("optimize.test.QuickSort");
+            classNames.add("optimize.test.NullTest");
+        }
+
+        for (String className : classNames) {
+            jq_Class[] classes = { (jq_Class)Helper.load(className) };
+            List<ControlFlowGraph> cfgs = ParallelDriver.getCFGs(classes);
+            System.out.println("Now benchmarking " + className
+                               + " (" + cfgs.size() + " methods)");
+            for (Case c : getCases()) {
+                if (filter != null && c.getName().indexOf(filter) < 0)
+                    continue;
+                Result result = measure(c, cfgs, warmup, iterations);
+                System.out.println(String.format("  %-40s %s", c.getName(), result));
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package optimize;
+
+import java.util.*;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Quad;
+import joeq.Compiler.Quad.QuadIterator;
+
+/**
+ * Solver that reaches the fixed point over blocks of quads instead of
+ * single quads. The blocks are not joeq's basic blocks: they are built
+ * from the quad edges themselves, each a maximal run of quads in which
+ * every quad is the only successor of the one before it and that one is
+ * its only predecessor. A quad with an exceptional edge or an edge to
+ * the exit therefore ends its block, so every block is a straight line
+ * of quads with a single entry and a single exit, and the result is the
+ * same as the quad-level solvers'.
+ */
+public class BlockSolver implements Flow.Solver, InstrumentedSolver.RoundCounter {
+
+    /** the solver's quad analyzer */
+    private Flow.Analysis analyzer;
+
+    /** the blocks, each a list of quads in program order */
+    private List<List<Quad>> blocks;
+
+    /** the composed transfer function of each block, if the analyzer
+     * supports it */
+    private List<Flow.TransferSummary> summaries;
+
+    /** the indices of the predecessor and successor blocks, -1 for the
+     * entry and exit */
+    private int[][] predBlocks, succBlocks;
+
+    /** the block values at the In and Out of each block */
+    private Flow.DataflowObject[] blockIn, blockOut;
+
+    /** the number of rounds of the last run */
+    private int rounds;
+
+    /**
+     * Register a new quad analyzer
+     * @param analyzer the analyzer to register
+     */
+    public void registerAnalysis(Flow.Analysis analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * @return the number of rounds over all blocks the last run took
+     */
+    public int getRounds() {
+        return rounds;
+    }
+
+    /**
+     * Visit a given control flow graph and runs the analyzer on all its
+     * blocks in the direction specified by the analyzer.
+     * @param cfg the control flow graph to visit
+     */
+    public void visitCFG(ControlFlowGraph cfg) {
+        // run preprocess
+        analyzer.preprocess(cfg);
+
+        // split the CFG into blocks and summarize them
+        buildBlocks(cfg);
+
+        // initialize the block values
+        int size = blocks.size();
+        blockIn = new Flow.DataflowObject[size];
+        blockOut = new Flow.DataflowObject[size];
+        for (int i = 0; i < size; i++) {
+            blockIn[i] = analyzer.newTempVar();
+            blockIn[i].setToTop();
+            blockOut[i] = analyzer.newTempVar();
+            blockOut[i].setToTop();
+        }
+
+        // iterate over all blocks repeatedly as long as there's change in
+        // any block's value
+        boolean changed = true;
+        rounds = 0;
+        while (changed) {
+            changed = false;
+            rounds++;
+            if (analyzer.isForward()) {
+                for (int i = 0; i < size; i++)
+                    if (processBlock(i))
+                        changed = true;
+            } else {
+                for (int i = size - 1; i >= 0; i--)
+                    if (processBlock(i))
+                        changed = true;
+            }
+        }
+
+        // fill in the quad values from the block values; without
+        // summaries the last round already left them in place
+        if (summaries != null) {
+            for (int i = 0; i < size; i++)
+                transferQuads(i, analyzer.isForward() ? blockIn[i] : blockOut[i]);
+        }
+
+        // depending on the analysis direction, calculate the final value
+        // of the entry / exit node
+        if (analyzer.isForward()) {
+            Flow.DataflowObject newExit = analyzer.newTempVar();
+            newExit.setToTop();
+            for (int i = 0; i < size; i++)
+                if (contains(succBlocks[i], -1))
+                    newExit.meetWith(blockOut[i]);
+            analyzer.setExit(newExit);
+        } else {
+            Flow.DataflowObject newEntry = analyzer.newTempVar();
+            newEntry.setToTop();
+            for (int i = 0; i < size; i++)
+                if (contains(predBlocks[i], -1))
+                    newEntry.meetWith(blockIn[i]);
+            analyzer.setEntry(newEntry);
+        }
+
+        // run postprocess
+        analyzer.postprocess(cfg);
+    }
+
+    /**
+     * Chain the quads of the control flow graph into straight-line
+     * blocks, in the order of a QuadIterator, and record the edges
+     * between them.
+     * @param cfg the control flow graph to split
+     */
+    private void buildBlocks(ControlFlowGraph cfg) {
+        blocks = new ArrayList<List<Quad>>();
+        Map<Quad, Integer> blockOf = new HashMap<Quad, Integer>();
+        List<Collection<Quad>> firstPreds = new ArrayList<Collection<Quad>>();
+        List<Collection<Quad>> lastSuccs = new ArrayList<Collection<Quad>>();
+
+        // a quad continues the current block iff it is the only successor
+        // of the previous quad and the previous quad is its only
+        // predecessor
+        QuadIterator quadIterator = new QuadIterator(cfg);
+        Quad previous = null;
+        Collection<Quad> previousSuccs = null;
+        while (quadIterator.hasNext()) {
+            Quad quad = quadIterator.next();
+            Collection<Quad> preds = quadIterator.predecessors1();
+            if (previous != null
+                && previousSuccs.size() == 1 && previousSuccs.contains(quad)
+                && preds.size() == 1 && preds.contains(previous)) {
+                blocks.get(blocks.size() - 1).add(quad);
+            } else {
+                blocks.add(new ArrayList<Quad>());
+                blocks.get(blocks.size() - 1).add(quad);
+                firstPreds.add(preds);
+                lastSuccs.add(null);
+            }
+            blockOf.put(quad, blocks.size() - 1);
+            previous = quad;
+            previousSuccs = quadIterator.successors1();
+            lastSuccs.set(blocks.size() - 1, previousSuccs);
+        }
+
+        // translate the quad edges into block edges
+        int size = blocks.size();
+        predBlocks = new int[size][];
+        succBlocks = new int[size][];
+        for (int i = 0; i < size; i++) {
+            predBlocks[i] = blockIndices(firstPreds.get(i), blockOf);
+            succBlocks[i] = blockIndices(lastSuccs.get(i), blockOf);
+        }
+
+        // compose the transfer functions if the analyzer can
+        summaries = null;
+        if (analyzer instanceof Flow.BlockAnalysis) {
+            Flow.BlockAnalysis blockAnalyzer = (Flow.BlockAnalysis)analyzer;
+            summaries = new ArrayList<Flow.TransferSummary>(size);
+            for (List<Quad> block : blocks) {
+                Flow.TransferSummary summary = blockAnalyzer.summarize(block);
+                if (summary == null) {
+                    summaries = null;
+                    break;
+                }
+                summaries.add(summary);
+            }
+        }
+    }
+
+    /**
+     * @param quads the neighboring quads, null for the entry or exit
+     * @param blockOf the block index of each quad
+     * @return the block indices of the quads, -1 for the entry or exit
+     */
+    private static int[] blockIndices(Collection<Quad> quads,
+                                      Map<Quad, Integer> blockOf) {
+        int[] result = new int[quads.size()];
+        int i = 0;
+        for (Quad quad : quads)
+            result[i++] = (quad == null ? -1 : blockOf.get(quad));
+        return result;
+    }
+
+    private static boolean contains(int[] array, int value) {
+        for (int element : array)
+            if (element == value)
+                return true;
+        return false;
+    }
+
+    /**
+     * Process a single block and returns true iff the block's value
+     * changed.
+     * @param i the index of the block to process
+     * @return true if the block's value changed, false otherwise
+     */
+    private boolean processBlock(int i) {
+        Flow.DataflowObject value = analyzer.newTempVar();
+        value.setToTop();
+        if (analyzer.isForward()) {
+            // meet with all the predecessors' Out values
+            for (int pred : predBlocks[i])
+                value.meetWith(pred == -1 ? analyzer.peekEntry() : blockOut[pred]);
+            blockIn[i].copy(value);
+            // the new value is below the old one, so meeting with it
+            // replaces the old value and reports the change
+            return blockOut[i].meetWithChanged(transfer(i, value));
+        } else {
+            // meet with all the successors' In values
+            for (int succ : succBlocks[i])
+                value.meetWith(succ == -1 ? analyzer.peekExit() : blockIn[succ]);
+            blockOut[i].copy(value);
+            return blockIn[i].meetWithChanged(transfer(i, value));
+        }
+    }
+
+    /**
+     * Apply the transfer function of a whole block.
+     * @param i the index of the block
+     * @param value the In (forward) or Out (backward) of the block
+     * @return the Out (forward) or In (backward) of the block
+     */
+    private Flow.DataflowObject transfer(int i, Flow.DataflowObject value) {
+        if (summaries != null) {
+            summaries.get(i).apply(value);
+            return value;
+        }
+        return transferQuads(i, value);
+    }
+
+    /**
+     * Run the analyzer over the quads of a block, setting their In and
+     * Out values.
+     * @param i the index of the block
+     * @param value the In (forward) or Out (backward) of the block
+     * @return the Out (forward) or In (backward) of the block
+     */
+    private Flow.DataflowObject transferQuads(int i, Flow.DataflowObject value) {
+        List<Quad> block = blocks.get(i);
+        if (analyzer.isForward()) {
+            for (Quad quad : block) {
+                analyzer.setIn(quad, value);
+                analyzer.processQuad(quad);
+                value = analyzer.peekOut(quad);
+            }
+        } else {
+            for (int j = block.size() - 1; j >= 0; j--) {
+                Quad quad = block.get(j);
+                analyzer.setOut(quad, value);
+                analyzer.processQuad(quad);
+                value = analyzer.peekIn(quad);
+            }
+        }
+        return value;
+    }
+}
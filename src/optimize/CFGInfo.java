@@ -0,0 +1,109 @@
+package optimize;
+
+import java.util.*;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Quad;
+import joeq.Compiler.Quad.QuadIterator;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.RegisterFactory.Register;
+
+/**
+ * Metadata of a control flow graph that every analysis needs: the bound
+ * on quad IDs, the register numbering and the argument registers. It is
+ * computed in a single walk over the CFG and stays valid until the CFG
+ * is modified. The def-use chains, the dominator tree and the expression
+ * numbering are computed on first request and cached with the rest of
+ * the metadata.
+ */
+public class CFGInfo {
+
+    /** Analysis that can take its metadata from a pass manager instead
+     * of computing it in preprocess.
+     */
+    public static interface User {
+        /**
+         * Provide the metadata of the CFG the analysis is run on next.
+         * @param info the metadata
+         */
+        void setCFGInfo(CFGInfo info);
+    }
+
+    private final ControlFlowGraph cfg;
+    private final int quadIDLimit;
+    private final int numArguments;
+    private final RegisterNumbering numbering;
+    private DefUseChains defUse;
+    private DominatorTree dominatorTree;
+    private ExpressionNumbering expressions;
+
+    /**
+     * Compute the metadata of a control flow graph.
+     * @param cfg the control flow graph
+     */
+    public CFGInfo(ControlFlowGraph cfg) {
+        this.cfg = cfg;
+        int max = 0;
+        List<Register> registers = new ArrayList<Register>();
+        QuadIterator qit = new QuadIterator(cfg);
+        while (qit.hasNext()) {
+            Quad q = qit.next();
+            if (q.getID() > max) max = q.getID();
+            for (RegisterOperand def : q.getDefinedRegisters()) {
+                registers.add(def.getRegister());
+            }
+            for (RegisterOperand use : q.getUsedRegisters()) {
+                registers.add(use.getRegister());
+            }
+        }
+        quadIDLimit = max + 1;
+        numArguments = cfg.getMethod().getParamTypes().length;
+        numbering = new RegisterNumbering(numArguments, registers);
+    }
+
+    /**
+     * @param cfg the control flow graph an analysis is run on
+     * @param given the metadata provided by a pass manager, or null
+     * @return the given metadata if it describes the CFG, otherwise
+     * freshly computed metadata
+     */
+    public static CFGInfo get(ControlFlowGraph cfg, CFGInfo given) {
+        return (given != null && given.cfg == cfg) ? given : new CFGInfo(cfg);
+    }
+
+    /** @return the control flow graph */
+    public ControlFlowGraph getCFG() { return cfg; }
+
+    /** @return one more than the largest quad ID, the length of an array
+     * indexed by quad ID */
+    public int getQuadIDLimit() { return quadIDLimit; }
+
+    /** @return the number of arguments, held in R0..Rn */
+    public int getNumArguments() { return numArguments; }
+
+    /** @return the numbering of the arguments and all registers the
+     * quads define or use */
+    public RegisterNumbering getRegisterNumbering() { return numbering; }
+
+    /** @return the def-use and use-def chains, computed on first call */
+    public DefUseChains getDefUseChains() {
+        if (defUse == null)
+            defUse = new DefUseChains(cfg, this);
+        return defUse;
+    }
+
+    /** @return the dominator tree of the basic blocks, computed on first
+     * call */
+    public DominatorTree getDominatorTree() {
+        if (dominatorTree == null)
+            dominatorTree = new DominatorTree(cfg);
+        return dominatorTree;
+    }
+
+    /** @return the numbering of the expressions, computed on first
+     * call */
+    public ExpressionNumbering getExpressionNumbering() {
+        if (expressions == null)
+            expressions = new ExpressionNumbering(cfg, this);
+        return expressions;
+    }
+}
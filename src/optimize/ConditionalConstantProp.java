@@ -0,0 +1,313 @@
+package optimize;
+
+import java.util.Collection;
+import joeq.Compiler.Quad.*;
+import joeq.Main.Helper;
+
+/**
+ * Conditional constant propagation, after the sparse conditional
+ * constant propagation of Wegman and Zadeck: the constants of
+ * {@link ConstantProp}, computed only over the edges that can run. Each
+ * value also says whether the code it describes is reachable, and all
+ * but the entry start unreachable. A branch whose outcome the constants
+ * decide (IFCMP_I, TABLESWITCH and LOOKUPSWITCH) sends its Out only to
+ * the successor it goes to, so the values of branches that never run
+ * are not merged in, and the code only they lead to stays unreachable.
+ * Every other quad sends its Out to all its successors, exception
+ * handlers included.
+ * <p>
+ * The feasible edges are the per-successor Outs of {@link ExFlow}, so
+ * the values are solved over the quads rather than over SSA def-use
+ * edges; {@link ConstantFolder} then rewrites the decided branches and
+ * removes the blocks that became unreachable.
+ */
+public class ConditionalConstantProp implements ExFlow.Analysis, CFGInfo.User, ConstantFolder.Constants {
+
+    /**
+     * The values of the registers at a point of the CFG, or unreachable,
+     * which is top: its meet with anything is the other value.
+     */
+    public static class ConstantState implements ExFlow.DataflowObject {
+        private boolean reachable;
+        private final ConstantProp.ConstantPropTable values;
+
+        /**
+         * Create an unreachable state.
+         * @param numbering the numbering of the registers
+         */
+        public ConstantState(RegisterNumbering numbering) {
+            values = new ConstantProp.ConstantPropTable(numbering);
+        }
+
+        public void setToTop() {
+            reachable = false;
+            values.setToTop();
+        }
+
+        public void setToBottom() {
+            reachable = true;
+            values.setToBottom();
+        }
+
+        public void meetWith(ExFlow.DataflowObject o) {
+            meetWithChanged(o);
+        }
+
+        public boolean meetWithChanged(ExFlow.DataflowObject o) {
+            ConstantState a = (ConstantState)o;
+            if (!a.reachable)
+                return false;
+            if (!reachable) {
+                copy(a);
+                return true;
+            }
+            return values.meetWithChanged(a.values);
+        }
+
+        public void copy(ExFlow.DataflowObject o) {
+            ConstantState a = (ConstantState)o;
+            reachable = a.reachable;
+            values.copy(a.values);
+        }
+
+        /** @return true if the code this state describes can run */
+        public boolean isReachable() { return reachable; }
+
+        /**
+         * @return the values of the registers; they belong to this state
+         * and must not be modified
+         */
+        public ConstantProp.ConstantPropTable getValues() { return values; }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof ConstantState) {
+                ConstantState a = (ConstantState)o;
+                return reachable == a.reachable && (!reachable || values.equals(a.values));
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return reachable ? values.hashCode() : -1;
+        }
+
+        @Override
+        public String toString() {
+            return reachable ? values.toString() : "unreachable";
+        }
+    }
+
+    private CFGInfo info;
+    private RegisterNumbering numbering;
+    private ConstantState[] in;
+
+    /** the successors of each quad, by quad ID, and the Out to each */
+    private Quad[][] succs;
+    private ConstantState[][] out;
+
+    /** the block of each branch, by quad ID; null for other quads */
+    private BasicBlock[] branchBlocks;
+
+    private ConstantState entry, exit;
+
+    /** the Out of the quad being processed, and the successor it alone
+     * goes to if its branch is decided */
+    private ConstantState val;
+    private boolean decided;
+    private Quad destination;
+
+    private final ConstantProp.TransferFunction transferfn = new ConstantProp.TransferFunction();
+
+    /** whether to print the method name and the results */
+    private final boolean print;
+
+    /**
+     * Create an analysis that prints its results.
+     */
+    public ConditionalConstantProp() {
+        this(true);
+    }
+
+    /**
+     * Create an analysis.
+     * @param print false to only compute the results, for passes that
+     * query them
+     */
+    ConditionalConstantProp(boolean print) {
+        this.print = print;
+    }
+
+    public void setCFGInfo(CFGInfo info) { this.info = info; }
+
+    public void preprocess(ControlFlowGraph cfg) {
+        if (print)
+            System.out.println("Method: " + cfg.getMethod().getName().toString());
+        info = CFGInfo.get(cfg, info);
+        numbering = info.getRegisterNumbering();
+        int max = info.getQuadIDLimit();
+        in = new ConstantState[max];
+        succs = new Quad[max][];
+        out = new ConstantState[max][];
+        branchBlocks = new BasicBlock[max];
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            int id = q.getID();
+            in[id] = newTempVar();
+            Collection<Quad> successors = qit.successors1();
+            succs[id] = successors.toArray(new Quad[successors.size()]);
+            out[id] = new ConstantState[succs[id].length];
+            for (int k = 0; k < out[id].length; k++)
+                out[id][k] = newTempVar();
+            Operator op = q.getOperator();
+            if (op instanceof Operator.IntIfCmp || op instanceof Operator.TableSwitch
+                || op instanceof Operator.LookupSwitch)
+                branchBlocks[id] = qit.getCurrentBasicBlock();
+        }
+
+        // the entry runs, and the arguments are always there
+        entry = newTempVar();
+        entry.reachable = true;
+        for (int i = 0; i < info.getNumArguments(); i++)
+            entry.values.setNAC("R" + i);
+        exit = newTempVar();
+        val = newTempVar();
+        transferfn.val = new ConstantProp.ConstantPropTable(numbering);
+    }
+
+    public void postprocess(ControlFlowGraph cfg) {
+        if (!print)
+            return;
+        System.out.println("entry: " + entry);
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            System.out.println(q.getID() + " in:  " + in[q.getID()]);
+            for (int k = 0; k < succs[q.getID()].length; k++) {
+                Quad succ = succs[q.getID()][k];
+                System.out.println(q.getID() + " out: " + (succ == null ? "exit" : String.valueOf(succ.getID()))
+                                   + " " + out[q.getID()][k]);
+            }
+        }
+        System.out.println("exit: " + exit);
+    }
+
+    public boolean isForward() { return true; }
+
+    public ConstantProp.ConstantPropTable getConstantsIn(Quad q) {
+        ConstantState state = in[q.getID()];
+        return state.reachable ? state.values : null;
+    }
+
+    /**
+     * @param q a quad of the CFG
+     * @return true if the quad can run
+     */
+    public boolean isReachable(Quad q) { return in[q.getID()].reachable; }
+
+    public ExFlow.DataflowObject getEntry() { return copyOf(entry); }
+    public ExFlow.DataflowObject getExit() { return copyOf(exit); }
+    public ExFlow.DataflowObject peekEntry() { return entry; }
+    public ExFlow.DataflowObject peekExit() { return exit; }
+
+    public ExFlow.DataflowObject getIn(Quad q, Quad pred) { return copyOf(in[q.getID()]); }
+    public ExFlow.DataflowObject getAllIn(Quad q) { return copyOf(in[q.getID()]); }
+    public ExFlow.DataflowObject peekIn(Quad q, Quad pred) { return in[q.getID()]; }
+
+    public ExFlow.DataflowObject getOut(Quad q, Quad succ) { return copyOf(peekOut(q, succ)); }
+
+    public ExFlow.DataflowObject getAllOut(Quad q) {
+        ConstantState result = newTempVar();
+        for (ConstantState o : out[q.getID()])
+            result.meetWith(o);
+        return result;
+    }
+
+    public ConstantState peekOut(Quad q, Quad succ) {
+        return out[q.getID()][indexOf(q, succ)];
+    }
+
+    public void setIn(Quad q, Quad pred, ExFlow.DataflowObject value) { in[q.getID()].copy(value); }
+    public void setAllIn(Quad q, ExFlow.DataflowObject value) { in[q.getID()].copy(value); }
+    public void setOut(Quad q, Quad succ, ExFlow.DataflowObject value) { peekOut(q, succ).copy(value); }
+
+    public void setAllOut(Quad q, ExFlow.DataflowObject value) {
+        for (ConstantState o : out[q.getID()])
+            o.copy(value);
+    }
+
+    public void setEntry(ExFlow.DataflowObject value) { entry.copy(value); }
+    public void setExit(ExFlow.DataflowObject value) { exit.copy(value); }
+
+    public ConstantState newTempVar() { return new ConstantState(numbering); }
+
+    private ConstantState copyOf(ConstantState value) {
+        ConstantState result = newTempVar();
+        result.copy(value);
+        return result;
+    }
+
+    /**
+     * @return the index of a successor of a quad
+     */
+    private int indexOf(Quad q, Quad succ) {
+        Quad[] s = succs[q.getID()];
+        for (int k = 0; k < s.length; k++)
+            if (s[k] == succ)
+                return k;
+        throw new IllegalArgumentException(succ + " is not a successor of " + q);
+    }
+
+    public void processQuad(Quad q) {
+        transfer(q);
+        ConstantState[] o = out[q.getID()];
+        for (int k = 0; k < o.length; k++) {
+            if (feasible(q, k))
+                o[k].copy(val);
+            else
+                o[k].setToTop();
+        }
+    }
+
+    public boolean processQuadChanged(Quad q) {
+        transfer(q);
+        ConstantState[] o = out[q.getID()];
+        boolean changed = false;
+        for (int k = 0; k < o.length; k++)
+            if (feasible(q, k) && o[k].meetWithChanged(val))
+                changed = true;
+        return changed;
+    }
+
+    /**
+     * Compute the Out of a quad into val, and decide its branch.
+     */
+    private void transfer(Quad q) {
+        ConstantState state = in[q.getID()];
+        decided = false;
+        if (!state.reachable) {
+            val.setToTop();
+            return;
+        }
+        transferfn.val.copy(state.values);
+        Helper.runPass(q, transferfn);
+        val.reachable = true;
+        val.values.copy(transferfn.val);
+        BasicBlock bb = branchBlocks[q.getID()];
+        if (bb != null) {
+            BasicBlock dest = ConstantProp.getDestination(q, bb, state.values);
+            if (dest != null) {
+                decided = true;
+                destination = QuadGraph.firstQuad(dest);
+            }
+        }
+    }
+
+    /**
+     * @return true if the last quad transferred can go to its k-th
+     * successor
+     */
+    private boolean feasible(Quad q, int k) {
+        return !decided || succs[q.getID()][k] == destination;
+    }
+}
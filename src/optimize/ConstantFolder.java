@@ -0,0 +1,269 @@
+package optimize;
+
+import java.util.*;
+import joeq.Compiler.Quad.*;
+import joeq.Compiler.Quad.Operand.IConstOperand;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.Operand.TargetOperand;
+import joeq.Compiler.Quad.RegisterFactory.Register;
+
+/**
+ * Rewrites a control flow graph with the constants an analysis found
+ * for it, {@link ConstantProp} or {@link ConditionalConstantProp}:
+ * <ul>
+ * <li>each register read where it holds a constant is replaced by the
+ * constant, in the operand positions joeq itself fills with constants
+ * (calls take registers only, so their arguments stay);</li>
+ * <li>each int Binary or Unary quad of constants becomes a MOVE_I of
+ * its value;</li>
+ * <li>each ZERO_CHECK of a constant other than 0 is removed;</li>
+ * <li>each branch on constants becomes a GOTO to the block it goes to,
+ * or is removed if it is a compare that falls through, and the blocks
+ * no longer reachable are removed from the CFG;</li>
+ * <li>each constant move no read is left for is removed, which drops
+ * the moves whose reads were all replaced, and the ones joeq's own
+ * propagation of constants already left unread.</li>
+ * </ul>
+ */
+public class ConstantFolder implements ControlFlowGraphVisitor {
+
+    /** The constants of a CFG.
+     */
+    public static interface Constants {
+        /**
+         * @param q a quad of the CFG
+         * @return the values of the registers before the quad, or null if
+         * the quad never runs; they belong to the analysis and must not
+         * be modified
+         */
+        ConstantProp.ConstantPropTable getConstantsIn(Quad q);
+    }
+
+    private final Constants constants;
+
+    /** the number of register reads replaced by constants in the last
+     * CFG */
+    private int substituted;
+
+    /** the number of computations folded into moves in the last CFG */
+    private int folded;
+
+    /** the number of branches of the last CFG decided */
+    private int pruned;
+
+    /** the number of quads removed from the last CFG */
+    private int removed;
+
+    /**
+     * @param constants the constants of the CFG
+     */
+    public ConstantFolder(Constants constants) {
+        this.constants = constants;
+    }
+
+    /** @return the number of register reads of the last CFG replaced by
+     * constants */
+    public int getSubstituted() { return substituted; }
+
+    /** @return the number of computations of the last CFG folded into
+     * moves */
+    public int getFolded() { return folded; }
+
+    /** @return the number of branches of the last CFG turned into gotos
+     * or removed */
+    public int getPruned() { return pruned; }
+
+    /** @return the number of zero checks and constant moves removed from
+     * the last CFG */
+    public int getRemoved() { return removed; }
+
+    public void visitCFG(ControlFlowGraph cfg) {
+        substituted = 0;
+        folded = 0;
+        pruned = 0;
+        removed = 0;
+
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            ConstantProp.ConstantPropTable in = constants.getConstantsIn(q);
+            if (in == null)
+                continue;
+            substitute(q, in);
+            Operator op = q.getOperator();
+            Integer value = fold(q);
+            if (value != null) {
+                qit.set(Operator.Move.create(cfg.getNewQuadID(), Operator.Move.MOVE_I.INSTANCE,
+                                             (RegisterOperand)q.getDefinedRegisters().get(0).copy(),
+                                             new IConstOperand(value)));
+                folded++;
+            } else if (op instanceof Operator.ZeroCheck.ZERO_CHECK_I
+                       && Operator.ZeroCheck.getSrc(q) instanceof IConstOperand
+                       && ((IConstOperand)Operator.ZeroCheck.getSrc(q)).getValue() != 0) {
+                qit.remove();
+                removed++;
+            } else {
+                BasicBlock bb = qit.getCurrentBasicBlock();
+                BasicBlock dest = ConstantProp.getDestination(q, bb, in);
+                if (dest != null) {
+                    // a compare that is not taken falls through as before
+                    boolean fallthrough = op instanceof Operator.IntIfCmp
+                        && dest != Operator.IntIfCmp.getTarget(q).getTarget();
+                    prune(bb, dest);
+                    if (fallthrough)
+                        qit.remove();
+                    else
+                        qit.set(Operator.Goto.create(cfg.getNewQuadID(), Operator.Goto.GOTO.INSTANCE,
+                                                     new TargetOperand(dest)));
+                    pruned++;
+                }
+            }
+        }
+        if (pruned > 0)
+            removeUnreachableBlocks(cfg);
+        removeDeadMoves(cfg);
+    }
+
+    /**
+     * Replace the registers a quad reads that hold constants before it.
+     */
+    private void substitute(Quad q, ConstantProp.ConstantPropTable in) {
+        Operator op = q.getOperator();
+        Operand c;
+        if (op instanceof Operator.Move) {
+            if ((c = constant(Operator.Move.getSrc(q), in)) != null)
+                Operator.Move.setSrc(q, c);
+        } else if (op instanceof Operator.Binary) {
+            if ((c = constant(Operator.Binary.getSrc1(q), in)) != null)
+                Operator.Binary.setSrc1(q, c);
+            if ((c = constant(Operator.Binary.getSrc2(q), in)) != null)
+                Operator.Binary.setSrc2(q, c);
+        } else if (op instanceof Operator.Unary) {
+            if ((c = constant(Operator.Unary.getSrc(q), in)) != null)
+                Operator.Unary.setSrc(q, c);
+        } else if (op instanceof Operator.IntIfCmp) {
+            if ((c = constant(Operator.IntIfCmp.getSrc1(q), in)) != null)
+                Operator.IntIfCmp.setSrc1(q, c);
+            if ((c = constant(Operator.IntIfCmp.getSrc2(q), in)) != null)
+                Operator.IntIfCmp.setSrc2(q, c);
+        } else if (op instanceof Operator.ZeroCheck) {
+            if ((c = constant(Operator.ZeroCheck.getSrc(q), in)) != null)
+                Operator.ZeroCheck.setSrc(q, c);
+        } else if (op instanceof Operator.BoundsCheck) {
+            if ((c = constant(Operator.BoundsCheck.getIndex(q), in)) != null)
+                Operator.BoundsCheck.setIndex(q, c);
+        } else if (op instanceof Operator.ALoad) {
+            if ((c = constant(Operator.ALoad.getIndex(q), in)) != null)
+                Operator.ALoad.setIndex(q, c);
+        } else if (op instanceof Operator.AStore) {
+            if ((c = constant(Operator.AStore.getValue(q), in)) != null)
+                Operator.AStore.setValue(q, c);
+            if ((c = constant(Operator.AStore.getIndex(q), in)) != null)
+                Operator.AStore.setIndex(q, c);
+        } else if (op instanceof Operator.Putfield) {
+            if ((c = constant(Operator.Putfield.getSrc(q), in)) != null)
+                Operator.Putfield.setSrc(q, c);
+        } else if (op instanceof Operator.Putstatic) {
+            if ((c = constant(Operator.Putstatic.getSrc(q), in)) != null)
+                Operator.Putstatic.setSrc(q, c);
+        } else if (op instanceof Operator.Return) {
+            if ((c = constant(Operator.Return.getSrc(q), in)) != null)
+                Operator.Return.setSrc(q, c);
+        } else if (op instanceof Operator.NewArray) {
+            if ((c = constant(Operator.NewArray.getSize(q), in)) != null)
+                Operator.NewArray.setSize(q, c);
+        } else if (op instanceof Operator.TableSwitch) {
+            if ((c = constant(Operator.TableSwitch.getSrc(q), in)) != null)
+                Operator.TableSwitch.setSrc(q, c);
+        } else if (op instanceof Operator.LookupSwitch) {
+            if ((c = constant(Operator.LookupSwitch.getSrc(q), in)) != null)
+                Operator.LookupSwitch.setSrc(q, c);
+        }
+    }
+
+    /**
+     * @return the constant an operand reads, or null if it is not a
+     * register holding a constant
+     */
+    private IConstOperand constant(Operand o, ConstantProp.ConstantPropTable in) {
+        if (!(o instanceof RegisterOperand))
+            return null;
+        Register r = ((RegisterOperand)o).getRegister();
+        if (!in.isConst(r))
+            return null;
+        substituted++;
+        return new IConstOperand(in.getConst(r));
+    }
+
+    /**
+     * @return the value of an int Binary or Unary quad whose operands are
+     * constants, or null if it is not one or divides by 0
+     */
+    private static Integer fold(Quad q) {
+        Operator op = q.getOperator();
+        if (ConstantProp.isIntBinary(op)
+            && Operator.Binary.getSrc1(q) instanceof IConstOperand
+            && Operator.Binary.getSrc2(q) instanceof IConstOperand) {
+            int a = ((IConstOperand)Operator.Binary.getSrc1(q)).getValue();
+            int b = ((IConstOperand)Operator.Binary.getSrc2(q)).getValue();
+            if (ConstantProp.isDivision(op) && b == 0)
+                return null;
+            return ConstantProp.evaluate(op, a, b);
+        }
+        if (ConstantProp.isIntUnary(op) && Operator.Unary.getSrc(q) instanceof IConstOperand)
+            return ConstantProp.evaluate(op, ((IConstOperand)Operator.Unary.getSrc(q)).getValue());
+        return null;
+    }
+
+    /**
+     * Make a block's only successor the one its branch goes to.
+     */
+    private static void prune(BasicBlock bb, BasicBlock dest) {
+        for (BasicBlock succ : bb.getSuccessors())
+            while (succ.removePredecessor(bb))
+                ;
+        bb.removeAllSuccessors();
+        bb.addSuccessor(dest);
+        dest.addPredecessor(bb);
+    }
+
+    /**
+     * Detach the blocks no longer reachable from the entry: drop them from
+     * the predecessors of the blocks that are, and from the blocks their
+     * exception handlers cover. Unlike joeq's
+     * ControlFlowGraph.removeUnreachableBasicBlocks, this leaves a loop
+     * the exit is no longer reachable from as it is, rather than
+     * announcing it on standard output and linking it to the exit.
+     */
+    private static void removeUnreachableBlocks(ControlFlowGraph cfg) {
+        List<BasicBlock> order = cfg.reversePostOrder(cfg.entry());
+        Set<BasicBlock> reachable = new HashSet<BasicBlock>(order);
+        for (BasicBlock bb : order)
+            bb.getPredecessors().retainAll(reachable);
+        for (Iterator<ExceptionHandler> it = cfg.getExceptionHandlers().iterator(); it.hasNext(); ) {
+            ExceptionHandler h = it.next();
+            h.getHandledBasicBlocks().retainAll(reachable);
+            if (h.getHandledBasicBlocks().isEmpty())
+                it.remove();
+        }
+    }
+
+    /**
+     * Remove the constant moves that no read is left for.
+     */
+    private void removeDeadMoves(ControlFlowGraph cfg) {
+        CFGInfo info = new CFGInfo(cfg);
+        DefUseChains chains = info.getDefUseChains();
+        ReachingDefinitions.Definitions definitions = chains.getDefinitions();
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            if (!(q.getOperator() instanceof Operator.Move.MOVE_I)
+                || !(Operator.Move.getSrc(q) instanceof IConstOperand))
+                continue;
+            int d = definitions.numberOf(q);
+            if (chains.defUseBegin(d) == chains.defUseEnd(d)) {
+                qit.remove();
+                removed++;
+            }
+        }
+    }
+}
@@ -3,70 +3,78 @@ package optimize;
 import java.util.*;
 import joeq.Compiler.Quad.*;
 import joeq.Compiler.Quad.Operand.*;
+import joeq.Compiler.Quad.RegisterFactory.Register;
 import joeq.Main.Helper;
 
-public class ConstantProp implements Flow.Analysis {
+public class ConstantProp implements Flow.Analysis, CFGInfo.User, ConstantFolder.Constants {
 
     public static class SingleCP implements Flow.DataflowObject {
-        private int state;
+        private byte state;
         private int constant;
 
-        public SingleCP() { setUndef(); }
+        public SingleCP() { state = 0; }
 
         public void setToTop() { setUndef(); }
         public void setToBottom() { setNAC(); }
 
         public void meetWith (Flow.DataflowObject o) {
+            meetWithChanged(o);
+        }
+
+        public boolean meetWithChanged (Flow.DataflowObject o) {
             SingleCP a = (SingleCP)o;
-            if (a.state == 0) 
-                return;
-            if (state == 0) {
-                state = a.state;
-                constant = a.constant;
-                return;
+            if (a.isUndef()) 
+                return false;
+            if (isUndef()) {
+                copy(a);
+                return true;
             }
-            if (state == 2 || a.state == 2) {
+            if (isNAC())
+                return false;
+            if (a.isNAC()) {
                 setNAC();
-                return;
+                return true;
             }
             /* otherwise, both are constants */
-            if (constant == a.constant) {
-                return;
+            if (getConst() == a.getConst()) {
+                return false;
             }
             setNAC();
+            return true;
         }
 
         public void copy (Flow.DataflowObject o) {
             SingleCP a = (SingleCP) o;
-            state = a.state;
-            constant = a.constant;
+            if (a.isConst()) {
+                setConst(a.getConst());
+            } else if (a.isNAC()) {
+                setNAC();
+            } else {
+                setUndef();
+            }
         }
 
         @Override
         public boolean equals (Object o) {
             if (o instanceof SingleCP) {
                 SingleCP a = (SingleCP) o;
-                if (state != 1) {
-                    return a.state == state;
+                if (!isConst()) {
+                    return a.isUndef() == isUndef() && a.isNAC() == isNAC();
                 } else {
-                    return a.state == state && a.constant == constant;
+                    return a.isConst() && a.getConst() == getConst();
                 }
             }
             return false;
         }
         @Override
         public int hashCode() {
-            return state;
+            return isUndef() ? 0 : isConst() ? 1 : 2;
         }
         @Override
         public String toString() {
-            switch (state) {
-            case 0: return "undef";
-            case 1: return String.valueOf(constant);
-            case 2: return "NAC";
-            default: break;
-            }
-            return ("<invalid state "+state+">");
+            if (isUndef()) return "undef";
+            if (isConst()) return String.valueOf(getConst());
+            return "NAC";
         }
 
         public void setUndef() { state = 0; }
@@ -82,136 +90,207 @@ public class ConstantProp implements Flow.Analysis {
     }
 
     public static class ConstantPropTable implements Flow.DataflowObject {
-        private SortedMap<String, SingleCP> map;
+        /* The lattice value of each register, using the same states as
+         * SingleCP, and its constant when the state is constant. */
+        private byte[] state;
+        private int[] constant;
 
-        /* 'core' is used to keep track of which variables we need to
+        /* 'numbering' is used to keep track of which variables we need to
          * track */
-        private static Set<String> core = new HashSet<String>();
-        public static void reset() { core.clear(); }
-        public static void register(String key) {
-            core.add(key);
-        }
+        private RegisterNumbering numbering;
 
-        public ConstantPropTable() {
-            map = new TreeMap<String, SingleCP>();
-            for (String key : core) {
-                map.put(key, new SingleCP());
-            }
+        public ConstantPropTable(RegisterNumbering numbering) {
+            this.numbering = numbering;
+            state = new byte[numbering.size()];
+            constant = new int[numbering.size()];
         }
 
         public void setToTop() {
-            for (SingleCP lattice : map.values()) {
-                lattice.setToTop();
-            }
+            Arrays.fill(state, (byte)0);
         }
 
         public void setToBottom() {
-            for (SingleCP lattice : map.values()) {
-                lattice.setToBottom();
-            }
+            Arrays.fill(state, (byte)2);
         }
 
         public void meetWith(Flow.DataflowObject o) {
+            meetWithChanged(o);
+        }
+
+        public boolean meetWithChanged(Flow.DataflowObject o) {
             ConstantPropTable a = (ConstantPropTable) o;
-            for (Map.Entry<String, SingleCP> e : a.map.entrySet()) {
-                SingleCP mine = map.get(e.getKey());
-                mine.meetWith(e.getValue());
-            }		
+            boolean changed = false;
+            for (int i = 0; i < state.length; i++) {
+                byte other = a.state[i];
+                if (other == 0 || state[i] == 2)
+                    continue;
+                if (state[i] == 0) {
+                    state[i] = other;
+                    constant[i] = a.constant[i];
+                    changed = true;
+                } else if (other == 2 || constant[i] != a.constant[i]) {
+                    state[i] = 2;
+                    changed = true;
+                }
+            }
+            return changed;
         }
 
         public void copy (Flow.DataflowObject o) {
             ConstantPropTable a = (ConstantPropTable) o;
-            for (Map.Entry<String, SingleCP> e : a.map.entrySet()) {
-                SingleCP mine = map.get(e.getKey());
-                mine.copy(e.getValue());
-            }		
+            System.arraycopy(a.state, 0, state, 0, state.length);
+            System.arraycopy(a.constant, 0, constant, 0, constant.length);
         }
 
         @Override
         public String toString() {
-            return map.toString();
+            StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < state.length; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(numbering.getName(i)).append('=').append(get(i));
+            }
+            return sb.append('}').toString();
         }
 
+        /* Returns the lattice value of a register, or null if the
+         * register is not tracked; changing it changes the table. */
         public SingleCP get(String key) {
-            return map.get(key);
+            int i = numbering.indexOf(key);
+            return i < 0 ? null : get(i);
+        }
+
+        private SingleCP get(int i) {
+            return new Entry(this, i);
+        }
+
+        /* The lattice value of one register of a table, read from and
+         * written to the table's arrays. */
+        private static class Entry extends SingleCP {
+            private final ConstantPropTable table;
+            private final int index;
+
+            Entry(ConstantPropTable table, int index) {
+                this.table = table;
+                this.index = index;
+            }
+
+            @Override
+            public void setUndef() { table.state[index] = 0; }
+            @Override
+            public void setConst(int val) { table.setConst(index, val); }
+            @Override
+            public void setNAC() { table.state[index] = 2; }
+
+            @Override
+            public boolean isUndef() { return table.state[index] == 0; }
+            @Override
+            public boolean isConst() { return table.state[index] == 1; }
+            @Override
+            public boolean isNAC() { return table.state[index] == 2; }
+            @Override
+            public int getConst() { return table.constant[index]; }
         }
 
         @Override
         public boolean equals (Object o) {
             if (o instanceof ConstantPropTable) {
-                return map.equals (((ConstantPropTable)o).map);
+                ConstantPropTable a = (ConstantPropTable) o;
+                if (!Arrays.equals(state, a.state))
+                    return false;
+                for (int i = 0; i < state.length; i++)
+                    if (state[i] == 1 && constant[i] != a.constant[i])
+                        return false;
+                return true;
             }
             return false;
         }
         @Override
         public int hashCode() {
-            return map.hashCode();
+            int hash = 0;
+            for (int i = 0; i < state.length; i++)
+                hash = 31 * hash + (state[i] == 1 ? constant[i] : state[i]);
+            return hash;
         }
 
+        public boolean isUndef(Register r) { return state[numbering.indexOf(r)] == 0; }
+        public boolean isConst(Register r) { return state[numbering.indexOf(r)] == 1; }
+        public boolean isNAC(Register r) { return state[numbering.indexOf(r)] == 2; }
+        public int getConst(Register r) { return constant[numbering.indexOf(r)]; }
+
         public void setUndef(String key) {
-            get(key).setUndef();
+            state[numbering.indexOf(key)] = 0;
         }
         public void setConst(String key, int val) {
-            get(key).setConst(val);
+            setConst(numbering.indexOf(key), val);
         }
         public void setNAC(String key) {
-            get(key).setNAC();
+            state[numbering.indexOf(key)] = 2;
         }
         public void transfer(String key, String src) {
-            get(key).copy(get(src));
+            int i = numbering.indexOf(key), j = numbering.indexOf(src);
+            state[i] = state[j];
+            constant[i] = constant[j];
+        }
+
+        public void setUndef(Register r) { state[numbering.indexOf(r)] = 0; }
+        public void setConst(Register r, int val) { setConst(numbering.indexOf(r), val); }
+        public void setNAC(Register r) { state[numbering.indexOf(r)] = 2; }
+
+        private void setConst(int i, int val) {
+            state[i] = 1;
+            constant[i] = val;
         }
     }
 
+    private CFGInfo info;
+    private RegisterNumbering numbering;
     private ConstantPropTable[] in, out;
     private ConstantPropTable entry, exit;
 
+    /* whether to print the method name and the results */
+    private final boolean print;
+
+    /* Create an analysis that prints its results. */
+    public ConstantProp() { this(true); }
+
+    /* Create an analysis; 'print' is false to only compute the results,
+     * for passes that query them. */
+    ConstantProp(boolean print) { this.print = print; }
+
+    public void setCFGInfo(CFGInfo info) { this.info = info; }
+
     public void preprocess (ControlFlowGraph cfg) {
-        System.out.println("Method: "+cfg.getMethod().getName().toString());
+        if (print)
+            System.out.println("Method: "+cfg.getMethod().getName().toString());
         /* Generate initial conditions. */
-        QuadIterator qit = new QuadIterator(cfg);
-        int max = 0;
-        while (qit.hasNext()) {
-            int x = qit.next().getID();
-            if (x > max) max = x;
-        }
-        max += 1;
+        info = CFGInfo.get(cfg, info);
+        int max = info.getQuadIDLimit();
         in = new ConstantPropTable[max];
         out = new ConstantPropTable[max];
-        qit = new QuadIterator(cfg);
 
-        ConstantPropTable.reset();
+        numbering = info.getRegisterNumbering();
 
         /* Arguments are always there. */
-        int numargs = cfg.getMethod().getParamTypes().length;
-        for (int i = 0; i < numargs; i++) {
-            ConstantPropTable.register("R"+i);
-        }
-
-        while (qit.hasNext()) {
-            Quad q = qit.next();
-            for (RegisterOperand def : q.getDefinedRegisters()) {
-                ConstantPropTable.register(def.getRegister().toString());
-            }
-            for (RegisterOperand use : q.getUsedRegisters()) {
-                ConstantPropTable.register(use.getRegister().toString());
-            }
-        }
+        int numargs = info.getNumArguments();
 
-        entry = new ConstantPropTable();
-        exit = new ConstantPropTable();
-        transferfn.val = new ConstantPropTable();
+        entry = new ConstantPropTable(numbering);
+        exit = new ConstantPropTable(numbering);
+        transferfn.val = new ConstantPropTable(numbering);
         for (int i=0; i<in.length; i++) {
-            in[i] = new ConstantPropTable();
-            out[i] = new ConstantPropTable();
+            in[i] = new ConstantPropTable(numbering);
+            out[i] = new ConstantPropTable(numbering);
         }
 
         for (int i=0; i < numargs; i++) {
             entry.setNAC("R"+i);
         }
-        System.out.println("Initialization completed.");
+        if (print)
+            System.out.println("Initialization completed.");
     }
 
     public void postprocess (ControlFlowGraph cfg) {
+        if (!print)
+            return;
         System.out.println("entry: "+entry.toString());
         for (int i=0; i<in.length; i++) {
             System.out.println(i+" in:  "+in[i].toString());
@@ -245,6 +324,12 @@ public class ConstantProp implements Flow.Analysis {
         result.copy(out[q.getID()]); 
         return result;
     }
+    public ConstantPropTable getConstantsIn(Quad q) { return in[q.getID()]; }
+
+    public Flow.DataflowObject peekEntry() { return entry; }
+    public Flow.DataflowObject peekExit() { return exit; }
+    public Flow.DataflowObject peekIn(Quad q) { return in[q.getID()]; }
+    public Flow.DataflowObject peekOut(Quad q) { return out[q.getID()]; }
     public void setIn(Quad q, Flow.DataflowObject value) { 
         in[q.getID()].copy(value); 
     }
@@ -258,7 +343,7 @@ public class ConstantProp implements Flow.Analysis {
         exit.copy(value); 
     }
 
-    public Flow.DataflowObject newTempVar() { return new ConstantPropTable(); }
+    public Flow.DataflowObject newTempVar() { return new ConstantPropTable(numbering); }
 
     /* Actually perform the transfer operation on the relevant
      * quad. */
@@ -269,6 +354,11 @@ public class ConstantProp implements Flow.Analysis {
         Helper.runPass(q, transferfn);
         out[q.getID()].copy(transferfn.val);
     }
+    public boolean processQuadChanged(Quad q) {
+        transferfn.val.copy(in[q.getID()]);
+        Helper.runPass(q, transferfn);
+        return out[q.getID()].meetWithChanged(transferfn.val);
+    }
 
     /* The QuadVisitor that actually does the computation */
     public static class TransferFunction extends QuadVisitor.EmptyVisitor
@@ -277,7 +367,7 @@ public class ConstantProp implements Flow.Analysis {
         @Override
         public void visitMove (Quad q) {
             Operand op = Operator.Move.getSrc(q);
-            String key = Operator.Move.getDest(q).getRegister().toString();
+            Register key = Operator.Move.getDest(q).getRegister();
 
             if (isUndef(op)) {
                 val.setUndef(key);
@@ -291,35 +381,35 @@ public class ConstantProp implements Flow.Analysis {
         public void visitBinary (Quad q) {
             Operand op1 =  Operator.Binary.getSrc1(q);
             Operand op2 =  Operator.Binary.getSrc2(q);
-            String key =   Operator.Binary.getDest(q).getRegister().toString();
+            Register key =   Operator.Binary.getDest(q).getRegister();
             Operator opr = q.getOperator();
 
-            if (opr == Operator.Binary.ADD_I.INSTANCE) {
-                if (isNAC(op1) || isNAC(op2)) {
+            if (!isIntBinary(opr) || isNAC(op1) || isNAC(op2)) {
+                val.setNAC(key);
+            } else if (isUndef(op1) || isUndef(op2)) {
+                val.setUndef(key);
+            } else { // both must be constant!
+                int a = getConst(op1), b = getConst(op2);
+                if (isDivision(opr) && b == 0) {
+                    /* the ZERO_CHECK before it throws */
                     val.setNAC(key);
-                } else if (isUndef(op1) || isUndef(op2)) {
-                    val.setUndef(key);
-                } else { // both must be constant!
-                    val.setConst(key, getConst(op1)+getConst(op2));
+                } else {
+                    val.setConst(key, evaluate(opr, a, b));
                 }
-            } else {
-                val.setNAC(key);
             }
         }
         @Override
         public void visitUnary (Quad q) {
             Operand op = Operator.Unary.getSrc(q);
-            String key = Operator.Unary.getDest(q).getRegister().toString();
+            Register key = Operator.Unary.getDest(q).getRegister();
             Operator opr = q.getOperator();
 
-            if (opr == Operator.Unary.NEG_I.INSTANCE) {
-                if (isUndef(op)) {
-                    val.setUndef(key);
-                } else if (isConst(op)) {
-                    val.setConst(key, -getConst(op));
-                } else {
-                    val.setNAC(key);
-                }
+            if (!isIntUnary(opr)) {
+                val.setNAC(key);
+            } else if (isUndef(op)) {
+                val.setUndef(key);
+            } else if (isConst(op)) {
+                val.setConst(key, evaluate(opr, getConst(op)));
             } else {
                 val.setNAC(key);
             }
@@ -327,43 +417,43 @@ public class ConstantProp implements Flow.Analysis {
 
         @Override
         public void visitALoad(Quad q) {
-            String key = Operator.ALoad.getDest(q).getRegister().toString();
+            Register key = Operator.ALoad.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitALength(Quad q) {
-            String key = Operator.ALength.getDest(q).getRegister().toString();
+            Register key = Operator.ALength.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitGetstatic(Quad q) {
-            String key = Operator.Getstatic.getDest(q).getRegister().toString();
+            Register key = Operator.Getstatic.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitGetfield(Quad q) {
-            String key = Operator.Getfield.getDest(q).getRegister().toString();
+            Register key = Operator.Getfield.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitInstanceOf(Quad q) {
-            String key = Operator.InstanceOf.getDest(q).getRegister().toString();
+            Register key = Operator.InstanceOf.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitNew(Quad q) {
-            String key = Operator.New.getDest(q).getRegister().toString();
+            Register key = Operator.New.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitNewArray(Quad q) {
-            String key = Operator.NewArray.getDest(q).getRegister().toString();
+            Register key = Operator.NewArray.getDest(q).getRegister();
             val.setNAC(key);
         }
 
@@ -371,37 +461,37 @@ public class ConstantProp implements Flow.Analysis {
         public void visitInvoke(Quad q) {
             RegisterOperand op = Operator.Invoke.getDest(q);
             if (op != null) {
-                String key = op.getRegister().toString();
+                Register key = op.getRegister();
                 val.setNAC(key);
             }
         }
 
         @Override
         public void visitJsr(Quad q) {
-            String key = Operator.Jsr.getDest(q).getRegister().toString();
+            Register key = Operator.Jsr.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         @Override
         public void visitCheckCast(Quad q) {
-            String key = Operator.CheckCast.getDest(q).getRegister().toString();
+            Register key = Operator.CheckCast.getDest(q).getRegister();
             val.setNAC(key);
         }
 
         private boolean isUndef (Operand op) {
             return (op instanceof RegisterOperand && 
-                    val.get(((RegisterOperand)op).getRegister().toString()).isUndef());
+                    val.isUndef(((RegisterOperand)op).getRegister()));
         }
 
         private boolean isConst (Operand op) {
             return (op instanceof IConstOperand) || 
             (op instanceof RegisterOperand && 
-                    val.get(((RegisterOperand)op).getRegister().toString()).isConst());
+                    val.isConst(((RegisterOperand)op).getRegister()));
         }
 
         private boolean isNAC (Operand op) {
             return (op instanceof RegisterOperand && 
-                    val.get(((RegisterOperand)op).getRegister().toString()).isNAC());
+                    val.isNAC(((RegisterOperand)op).getRegister()));
         }
 
         private int getConst (Operand op) {
@@ -409,11 +499,131 @@ public class ConstantProp implements Flow.Analysis {
                 return ((IConstOperand)op).getValue();
             }
             if (op instanceof RegisterOperand) {
-                SingleCP o = val.get(((RegisterOperand)op).getRegister().toString());
-                if (o.state == 1)
-                    return o.getConst();
+                Register r = ((RegisterOperand)op).getRegister();
+                if (val.isConst(r))
+                    return val.getConst(r);
             }
             throw new IllegalArgumentException("Tried to getConst a non-Const!");
         }
     }
+
+    /* Is this a Binary operator that computes an int from two ints? */
+    static boolean isIntBinary(Operator opr) {
+        return opr instanceof Operator.Binary.ADD_I || opr instanceof Operator.Binary.SUB_I
+            || opr instanceof Operator.Binary.MUL_I || opr instanceof Operator.Binary.DIV_I
+            || opr instanceof Operator.Binary.REM_I || opr instanceof Operator.Binary.AND_I
+            || opr instanceof Operator.Binary.OR_I || opr instanceof Operator.Binary.XOR_I
+            || opr instanceof Operator.Binary.SHL_I || opr instanceof Operator.Binary.SHR_I
+            || opr instanceof Operator.Binary.USHR_I;
+    }
+
+    /* Is this a Unary operator that computes an int from an int? */
+    static boolean isIntUnary(Operator opr) {
+        return opr instanceof Operator.Unary.NEG_I || opr instanceof Operator.Unary.INT_2BYTE
+            || opr instanceof Operator.Unary.INT_2CHAR || opr instanceof Operator.Unary.INT_2SHORT;
+    }
+
+    /* Does this operator throw when its second operand is 0? The
+     * exception comes from the ZERO_CHECK joeq puts before it. */
+    static boolean isDivision(Operator opr) {
+        return opr instanceof Operator.Binary.DIV_I || opr instanceof Operator.Binary.REM_I;
+    }
+
+    /* The value of an int Binary operator, with Java semantics; the
+     * divisor of a division must not be 0. */
+    static int evaluate(Operator opr, int a, int b) {
+        if (opr instanceof Operator.Binary.ADD_I) return a + b;
+        if (opr instanceof Operator.Binary.SUB_I) return a - b;
+        if (opr instanceof Operator.Binary.MUL_I) return a * b;
+        if (opr instanceof Operator.Binary.DIV_I) return a / b;
+        if (opr instanceof Operator.Binary.REM_I) return a % b;
+        if (opr instanceof Operator.Binary.AND_I) return a & b;
+        if (opr instanceof Operator.Binary.OR_I) return a | b;
+        if (opr instanceof Operator.Binary.XOR_I) return a ^ b;
+        if (opr instanceof Operator.Binary.SHL_I) return a << b;
+        if (opr instanceof Operator.Binary.SHR_I) return a >> b;
+        if (opr instanceof Operator.Binary.USHR_I) return a >>> b;
+        throw new IllegalArgumentException("Not an int Binary operator: "+opr);
+    }
+
+    /* The constant an operand holds when the registers hold the values
+     * of 'val', or null if it is not a constant. */
+    static Integer valueOf(Operand op, ConstantPropTable val) {
+        if (op instanceof IConstOperand)
+            return ((IConstOperand)op).getValue();
+        if (op instanceof RegisterOperand && val.isConst(((RegisterOperand)op).getRegister()))
+            return val.getConst(((RegisterOperand)op).getRegister());
+        return null;
+    }
+
+    /* The block a branch in block 'bb' goes to when the registers hold
+     * the values of 'val', or null if that is not known. The compares
+     * follow joeq's interpreter. */
+    static BasicBlock getDestination(Quad q, BasicBlock bb, ConstantPropTable val) {
+        Operator opr = q.getOperator();
+        if (opr instanceof Operator.IntIfCmp.IFCMP_I) {
+            BasicBlock target = Operator.IntIfCmp.getTarget(q).getTarget();
+            byte cond = Operator.IntIfCmp.getCond(q).getCondition();
+            boolean taken;
+            if (cond == joeq.Compiler.BytecodeAnalysis.BytecodeVisitor.CMP_UNCOND) {
+                taken = true;
+            } else {
+                Integer a = valueOf(Operator.IntIfCmp.getSrc1(q), val);
+                Integer b = valueOf(Operator.IntIfCmp.getSrc2(q), val);
+                if (a == null || b == null)
+                    return null;
+                taken = compare(cond, a, b);
+            }
+            if (taken)
+                return target;
+            for (BasicBlock succ : bb.getSuccessors())
+                if (succ != target)
+                    return succ;
+            return target;
+        }
+        if (opr instanceof Operator.TableSwitch) {
+            Integer v = valueOf(Operator.TableSwitch.getSrc(q), val);
+            if (v == null)
+                return null;
+            int low = Operator.TableSwitch.getLow(q).getValue();
+            int size = Operator.TableSwitch.getTargetTable(q).size();
+            if (v < low || v - low >= size)
+                return Operator.TableSwitch.getDefault(q).getTarget();
+            return Operator.TableSwitch.getTarget(q, v - low);
+        }
+        if (opr instanceof Operator.LookupSwitch) {
+            Integer v = valueOf(Operator.LookupSwitch.getSrc(q), val);
+            if (v == null)
+                return null;
+            for (int i = 0; i < Operator.LookupSwitch.getSize(q); i++)
+                if (Operator.LookupSwitch.getMatch(q, i) == v)
+                    return Operator.LookupSwitch.getTarget(q, i);
+            return Operator.LookupSwitch.getDefault(q).getTarget();
+        }
+        return null;
+    }
+
+    /* The outcome of an int compare. */
+    private static boolean compare(byte cond, int a, int b) {
+        switch (cond) {
+        case joeq.Compiler.BytecodeAnalysis.BytecodeVisitor.CMP_EQ: return a == b;
+        case joeq.Compiler.BytecodeAnalysis.BytecodeVisitor.CMP_NE: return a != b;
+        case joeq.Compiler.BytecodeAnalysis.BytecodeVisitor.CMP_LT: return a < b;
+        case joeq.Compiler.BytecodeAnalysis.BytecodeVisitor.CMP_GE: return a >= b;
+        case joeq.Compiler.BytecodeAnalysis.BytecodeVisitor.CMP_LE: return a <= b;
+        case joeq.Compiler.BytecodeAnalysis.BytecodeVisitor.CMP_GT: return a > b;
+        case joeq.Compiler.BytecodeAnalysis.BytecodeVisitor.CMP_AE: return joeq.Runtime.MathSupport.ucmp(a, b);
+        default: break;
+        }
+        throw new IllegalArgumentException("Not an int condition: "+cond);
+    }
+
+    /* The value of an int Unary operator, with Java semantics. */
+    static int evaluate(Operator opr, int a) {
+        if (opr instanceof Operator.Unary.NEG_I) return -a;
+        if (opr instanceof Operator.Unary.INT_2BYTE) return (byte)a;
+        if (opr instanceof Operator.Unary.INT_2CHAR) return (char)a;
+        if (opr instanceof Operator.Unary.INT_2SHORT) return (short)a;
+        throw new IllegalArgumentException("Not an int Unary operator: "+opr);
+    }
 }
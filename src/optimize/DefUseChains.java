@@ -0,0 +1,157 @@
+package optimize;
+
+import java.util.*;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Quad;
+import joeq.Compiler.Quad.QuadIterator;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+
+/**
+ * Def-use and use-def chains of a control flow graph, computed from the
+ * fixed point of {@link ReachingDefinitions}. Definitions are numbered
+ * as in {@link ReachingDefinitions.Definitions}; uses are the register
+ * operands the quads read, numbered in quad ID order. Both directions
+ * are stored as index ranges of flat arrays (compressed sparse rows),
+ * like {@link QuadGraph}. A use no definition reaches reads an argument
+ * or an uninitialized register. The chains of a graph are cached in its
+ * {@link CFGInfo}.
+ */
+public class DefUseChains {
+
+    /** the numbering of the definitions */
+    private final ReachingDefinitions.Definitions definitions;
+
+    /** the quad and operand of each use */
+    private final Quad[] useQuads;
+    private final RegisterOperand[] useOperands;
+
+    /** the uses of the quad with ID i are quadUseStart[i] up to
+     * quadUseStart[i+1] */
+    private final int[] quadUseStart;
+
+    /** the definitions reaching use u are useDefs[useDefStart[u]] up to
+     * useDefs[useDefStart[u+1]], in increasing order */
+    private final int[] useDefStart, useDefs;
+
+    /** the uses reached by definition d are defUses[defUseStart[d]] up
+     * to defUses[defUseStart[d+1]], in increasing order */
+    private final int[] defUseStart, defUses;
+
+    /**
+     * Compute the chains of a control flow graph.
+     * @param cfg the control flow graph
+     * @param info the metadata of the control flow graph
+     */
+    public DefUseChains(ControlFlowGraph cfg, CFGInfo info) {
+        // solve reaching definitions without printing the results
+        ReachingDefinitions reaching = new ReachingDefinitions(false);
+        reaching.setCFGInfo(info);
+        Flow.Solver solver = new BlockSolver();
+        solver.registerAnalysis(reaching);
+        solver.visitCFG(cfg);
+        definitions = reaching.getDefinitions();
+
+        // number the uses in quad ID order
+        Quad[] byID = new Quad[info.getQuadIDLimit()];
+        int uses = 0;
+        QuadIterator qit = new QuadIterator(cfg);
+        while (qit.hasNext()) {
+            Quad q = qit.next();
+            byID[q.getID()] = q;
+            uses += q.getUsedRegisters().size();
+        }
+        useQuads = new Quad[uses];
+        useOperands = new RegisterOperand[uses];
+        quadUseStart = new int[byID.length + 1];
+        int u = 0;
+        for (int id = 0; id < byID.length; id++) {
+            quadUseStart[id] = u;
+            if (byID[id] == null)
+                continue;
+            for (RegisterOperand use : byID[id].getUsedRegisters()) {
+                useQuads[u] = byID[id];
+                useOperands[u] = use;
+                u++;
+            }
+        }
+        quadUseStart[byID.length] = u;
+
+        // the definitions reaching a use are those of its register that
+        // reach the In of its quad
+        useDefStart = new int[uses + 1];
+        for (u = 0; u < uses; u++) {
+            long[] in = words(reaching, useQuads[u]);
+            long[] mask = definitions.getKillMask(useOperands[u].getRegister());
+            int count = 0;
+            for (int w = 0; w < in.length; w++)
+                count += Long.bitCount(in[w] & mask[w]);
+            useDefStart[u + 1] = useDefStart[u] + count;
+        }
+        useDefs = new int[useDefStart[uses]];
+        int[] defUseCount = new int[definitions.size()];
+        for (u = 0; u < uses; u++) {
+            long[] in = words(reaching, useQuads[u]);
+            long[] mask = definitions.getKillMask(useOperands[u].getRegister());
+            int k = useDefStart[u];
+            for (int w = 0; w < in.length; w++) {
+                long bits = in[w] & mask[w];
+                while (bits != 0) {
+                    int d = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    useDefs[k++] = d;
+                    defUseCount[d]++;
+                }
+            }
+        }
+
+        // transpose into the def-use chains
+        defUseStart = new int[definitions.size() + 1];
+        for (int d = 0; d < definitions.size(); d++)
+            defUseStart[d + 1] = defUseStart[d] + defUseCount[d];
+        defUses = new int[useDefs.length];
+        int[] next = Arrays.copyOf(defUseStart, definitions.size());
+        for (u = 0; u < uses; u++)
+            for (int k = useDefStart[u]; k < useDefStart[u + 1]; k++)
+                defUses[next[useDefs[k]]++] = u;
+    }
+
+    private static long[] words(ReachingDefinitions reaching, Quad quad) {
+        return ((ReachingDefinitions.DefinitionSet)reaching.peekIn(quad)).getWords();
+    }
+
+    /** @return the numbering of the definitions */
+    public ReachingDefinitions.Definitions getDefinitions() { return definitions; }
+
+    /** @return the number of uses */
+    public int useCount() { return useQuads.length; }
+
+    /** @return the quad of use u */
+    public Quad getUseQuad(int u) { return useQuads[u]; }
+
+    /** @return the register operand of use u */
+    public RegisterOperand getUseOperand(int u) { return useOperands[u]; }
+
+    /** @return the first use of a quad */
+    public int quadUseBegin(Quad quad) { return quadUseStart[quad.getID()]; }
+
+    /** @return the end (exclusive) of the uses of a quad */
+    public int quadUseEnd(Quad quad) { return quadUseStart[quad.getID() + 1]; }
+
+    /** @return the start of the definitions reaching use u */
+    public int useDefBegin(int u) { return useDefStart[u]; }
+
+    /** @return the end (exclusive) of the definitions reaching use u */
+    public int useDefEnd(int u) { return useDefStart[u + 1]; }
+
+    /** @return the definition number at position k of the use-def chains */
+    public int useDef(int k) { return useDefs[k]; }
+
+    /** @return the start of the uses reached by definition d */
+    public int defUseBegin(int d) { return defUseStart[d]; }
+
+    /** @return the end (exclusive) of the uses reached by definition d */
+    public int defUseEnd(int d) { return defUseStart[d + 1]; }
+
+    /** @return the use number at position k of the def-use chains */
+    public int defUse(int k) { return defUses[k]; }
+}
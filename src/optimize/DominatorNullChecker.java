@@ -0,0 +1,177 @@
+package optimize;
+
+import java.util.*;
+import joeq.Compiler.Quad.*;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import jwutil.math.BitString;
+
+/**
+ * Removes the null checks that are dominated by a check of the same
+ * register with no redefinition in between, in a single walk over the
+ * {@link DominatorTree}. The checked registers are kept in a scoped set
+ * that the walk restores when it leaves a block. A move makes its
+ * destination checked exactly when its source is, as in
+ * {@link NullChecker}; any other definition unchecks. A block where
+ * different definitions of a register merge (one in the iterated
+ * dominance frontier of the register's definitions) unchecks the
+ * register. An exception handler entry unchecks all of them, and counts
+ * as a definition of every register, so its frontier unchecks them too.
+ * Checks that are only redundant along every path, not by dominance,
+ * are left to {@link NullChecker} as a second pass.
+ */
+public class DominatorNullChecker implements ControlFlowGraphVisitor, CFGInfo.User {
+
+    private CFGInfo info;
+
+    /** the number of null checks removed from the last CFG */
+    private int removed;
+
+    public void setCFGInfo(CFGInfo info) { this.info = info; }
+
+    /** @return the number of null checks removed from the last CFG */
+    public int getRemoved() { return removed; }
+
+    /**
+     * Remove the dominated null checks of a control flow graph.
+     * @param cfg the control flow graph
+     */
+    public void visitCFG(ControlFlowGraph cfg) {
+        info = CFGInfo.get(cfg, info);
+        boolean[] redundant = new Walk(info).run();
+        removed = 0;
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            if (redundant[q.getID()]) {
+                qit.remove();
+                removed++;
+            }
+        }
+    }
+
+    /**
+     * The walk over the dominator tree of one control flow graph.
+     */
+    private static class Walk {
+        private final DominatorTree tree;
+        private final RegisterNumbering numbering;
+
+        /** the registers to uncheck on entering each block, by block ID */
+        private final RegisterSet[] joinKills;
+
+        /** whether each register is checked at the current point */
+        private final boolean[] checked;
+
+        /** the registers whose checked state was flipped, to flip back
+         * when the walk leaves a block */
+        private int[] flipped = new int[16];
+        private int flippedSize;
+
+        /** the null checks found redundant, by quad ID */
+        private final boolean[] redundant;
+
+        Walk(CFGInfo info) {
+            tree = info.getDominatorTree();
+            numbering = info.getRegisterNumbering();
+            checked = new boolean[numbering.size()];
+            redundant = new boolean[info.getQuadIDLimit()];
+
+            // a register defined in block d merges at the frontier of d,
+            // and from there at the frontiers further on; an exception
+            // handler entry may be reached from the middle of a block, so
+            // it starts with no register checked and defines them all
+            int nblocks = tree.getNumberOfBlocks();
+            RegisterSet[] defs = new RegisterSet[nblocks];
+            joinKills = new RegisterSet[nblocks];
+            for (BasicBlock bb : tree.getBlocks()) {
+                defs[bb.getID()] = new RegisterSet(numbering);
+                joinKills[bb.getID()] = new RegisterSet(numbering);
+                if (bb.isExceptionHandlerEntry()) {
+                    defs[bb.getID()].fill();
+                    joinKills[bb.getID()].fill();
+                }
+                for (int i = 0; i < bb.size(); i++)
+                    for (RegisterOperand def : bb.getQuad(i).getDefinedRegisters())
+                        defs[bb.getID()].add(def.getRegister());
+            }
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (BasicBlock bb : tree.getBlocks()) {
+                    BitString.ForwardBitStringIterator it = tree.getFrontier(bb).iterator();
+                    while (it.hasNext()) {
+                        RegisterSet kills = joinKills[it.nextIndex()];
+                        changed |= kills.addAll(defs[bb.getID()]);
+                        changed |= kills.addAll(joinKills[bb.getID()]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the redundant null checks, by quad ID
+         */
+        boolean[] run() {
+            // depth-first over the tree, undoing each block on the way up
+            int depth = tree.getBlocks().size() + 1;
+            BasicBlock[] blocks = new BasicBlock[depth];
+            int[] child = new int[depth], mark = new int[depth];
+            int sp = 0;
+            blocks[sp] = tree.getCFG().entry();
+            mark[sp] = flippedSize;
+            child[sp++] = 0;
+            enter(tree.getCFG().entry());
+            while (sp > 0) {
+                List<BasicBlock> children = tree.getChildren(blocks[sp - 1]);
+                if (child[sp - 1] < children.size()) {
+                    BasicBlock bb = children.get(child[sp - 1]++);
+                    blocks[sp] = bb;
+                    mark[sp] = flippedSize;
+                    child[sp++] = 0;
+                    enter(bb);
+                } else {
+                    sp--;
+                    while (flippedSize > mark[sp]) {
+                        int r = flipped[--flippedSize];
+                        checked[r] = !checked[r];
+                    }
+                }
+            }
+            return redundant;
+        }
+
+        private void enter(BasicBlock bb) {
+            RegisterSet kills = joinKills[bb.getID()];
+            for (int r = kills.nextSetBit(0); r >= 0; r = kills.nextSetBit(r + 1))
+                set(r, false);
+            for (int i = 0; i < bb.size(); i++) {
+                Quad q = bb.getQuad(i);
+                Operator op = q.getOperator();
+                if (op instanceof Operator.Move
+                    && Operator.Move.getSrc(q) instanceof RegisterOperand) {
+                    RegisterOperand src = (RegisterOperand)Operator.Move.getSrc(q);
+                    boolean srcChecked = checked[numbering.indexOf(src.getRegister())];
+                    set(numbering.indexOf(Operator.Move.getDest(q).getRegister()), srcChecked);
+                    continue;
+                }
+                for (RegisterOperand def : q.getDefinedRegisters())
+                    set(numbering.indexOf(def.getRegister()), false);
+                if (op instanceof Operator.NullCheck && q.getUsedRegisters().size() == 1) {
+                    int r = numbering.indexOf(q.getUsedRegisters().get(0).getRegister());
+                    if (checked[r])
+                        redundant[q.getID()] = true;
+                    else
+                        set(r, true);
+                }
+            }
+        }
+
+        private void set(int r, boolean value) {
+            if (checked[r] == value)
+                return;
+            if (flippedSize == flipped.length)
+                flipped = Arrays.copyOf(flipped, 2 * flippedSize);
+            flipped[flippedSize++] = r;
+            checked[r] = value;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package optimize;
+
+import java.util.*;
+import joeq.Compiler.Quad.BasicBlock;
+import joeq.Compiler.Quad.CodeCache;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Dominators;
+import joeq.Compiler.Quad.ExceptionHandler;
+import jwutil.math.BitString;
+
+/**
+ * The dominator tree and dominance frontiers of the basic blocks of a
+ * control flow graph. Dominance is computed by joeq's {@link Dominators};
+ * the tree is derived from the dominator sets (the immediate dominator is
+ * the strict dominator with the most dominators) and the frontiers follow
+ * Cooper, Harvey and Kennedy. An exception handler entry counts the
+ * blocks it handles as its predecessors. Blocks unreachable from the
+ * entry are not part of the tree.
+ */
+public class DominatorTree {
+
+    private final ControlFlowGraph cfg;
+
+    /** the reachable blocks, in reverse post-order */
+    private final List<BasicBlock> order;
+
+    /** the reachable blocks, by ID; null if unreachable */
+    private final BasicBlock[] blocks;
+
+    /** the dominators of each block, by ID */
+    private final BitString[] dominators;
+
+    /** the immediate dominator of each block, -1 for the entry */
+    private final int[] idom;
+
+    /** the dominator tree children of each block, in reverse post-order */
+    private final List<List<BasicBlock>> children;
+
+    /** the predecessors of each block, handled blocks included */
+    private final List<List<BasicBlock>> predecessors;
+
+    /** the dominance frontier of each block */
+    private final BitString[] frontiers;
+
+    /**
+     * Compute the dominator tree of a control flow graph.
+     * @param cfg the control flow graph, which must be the cached code
+     * of its method
+     */
+    public DominatorTree(ControlFlowGraph cfg) {
+        if (CodeCache.getCode(cfg.getMethod()) != cfg)
+            throw new IllegalArgumentException("not the cached code of " + cfg.getMethod());
+        this.cfg = cfg;
+        Dominators doms = new Dominators(true);
+        doms.visitMethod(cfg.getMethod());
+        dominators = doms.dominators;
+
+        int n = cfg.getNumberOfBasicBlocks();
+        order = cfg.reversePostOrder(cfg.entry());
+        blocks = new BasicBlock[n];
+        for (BasicBlock bb : order)
+            blocks[bb.getID()] = bb;
+
+        // the immediate dominator is the deepest strict dominator
+        int[] depth = new int[n];
+        for (BasicBlock bb : order)
+            depth[bb.getID()] = dominators[bb.getID()].numberOfOnes();
+        idom = new int[n];
+        Arrays.fill(idom, -1);
+        children = new ArrayList<List<BasicBlock>>(n);
+        predecessors = new ArrayList<List<BasicBlock>>(n);
+        for (int i = 0; i < n; i++) {
+            children.add(new ArrayList<BasicBlock>());
+            predecessors.add(new ArrayList<BasicBlock>());
+        }
+        for (BasicBlock bb : order) {
+            int b = bb.getID();
+            BitString.ForwardBitStringIterator it = dominators[b].iterator();
+            while (it.hasNext()) {
+                int d = it.nextIndex();
+                if (d != b && (idom[b] < 0 || depth[d] > depth[idom[b]]))
+                    idom[b] = d;
+            }
+            if (idom[b] >= 0)
+                children.get(idom[b]).add(bb);
+        }
+
+        // collect the reachable predecessors
+        for (BasicBlock bb : order) {
+            List<BasicBlock> preds = predecessors.get(bb.getID());
+            for (BasicBlock p : bb.getPredecessors())
+                if (isReachable(p))
+                    preds.add(p);
+            if (bb.isExceptionHandlerEntry()) {
+                Iterator<ExceptionHandler> it = cfg.getExceptionHandlersMatchingEntry(bb);
+                while (it.hasNext())
+                    for (BasicBlock p : it.next().getHandledBasicBlocks())
+                        if (isReachable(p) && !preds.contains(p))
+                            preds.add(p);
+            }
+        }
+
+        // the frontiers: walk up from each predecessor of a join
+        frontiers = new BitString[n];
+        for (int i = 0; i < n; i++)
+            frontiers[i] = new BitString(n);
+        for (BasicBlock bb : order) {
+            List<BasicBlock> preds = predecessors.get(bb.getID());
+            if (preds.size() < 2)
+                continue;
+            for (BasicBlock p : preds) {
+                for (int runner = p.getID(); runner != idom[bb.getID()] && runner >= 0;
+                     runner = idom[runner])
+                    frontiers[runner].set(bb.getID());
+            }
+        }
+    }
+
+    /** @return the control flow graph */
+    public ControlFlowGraph getCFG() { return cfg; }
+
+    /** @return the number of block IDs, the length of an array indexed
+     * by block ID */
+    public int getNumberOfBlocks() { return blocks.length; }
+
+    /** @return the reachable blocks, in reverse post-order */
+    public List<BasicBlock> getBlocks() { return order; }
+
+    /** @return the block with the given ID, or null if it is unreachable */
+    public BasicBlock getBlock(int id) { return blocks[id]; }
+
+    /** @return true if the block is reachable from the entry */
+    public boolean isReachable(BasicBlock bb) { return blocks[bb.getID()] == bb; }
+
+    /** @return the immediate dominator of a block, null for the entry */
+    public BasicBlock getImmediateDominator(BasicBlock bb) {
+        int d = idom[bb.getID()];
+        return d < 0 ? null : blocks[d];
+    }
+
+    /** @return the blocks immediately dominated by a block */
+    public List<BasicBlock> getChildren(BasicBlock bb) {
+        return children.get(bb.getID());
+    }
+
+    /** @return the reachable predecessors of a block, the blocks handled
+     * by an exception handler entry included */
+    public List<BasicBlock> getPredecessors(BasicBlock bb) {
+        return predecessors.get(bb.getID());
+    }
+
+    /** @return true if block a dominates block b */
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        return dominators[b.getID()].get(a.getID());
+    }
+
+    /** @return the dominators of a block, by block ID */
+    public BitString getDominators(BasicBlock bb) { return dominators[bb.getID()]; }
+
+    /** @return the dominance frontier of a block, by block ID */
+    public BitString getFrontier(BasicBlock bb) { return frontiers[bb.getID()]; }
+
+    /**
+     * @param set blocks, by block ID
+     * @return the iterated dominance frontier of the blocks, by block ID
+     */
+    public BitString getIteratedFrontier(BitString set) {
+        BitString result = new BitString(blocks.length);
+        BitString done = new BitString(blocks.length);
+        int[] worklist = new int[blocks.length];
+        int size = 0;
+        BitString.ForwardBitStringIterator it = set.iterator();
+        while (it.hasNext()) {
+            int b = it.nextIndex();
+            if (blocks[b] != null) {
+                done.set(b);
+                worklist[size++] = b;
+            }
+        }
+        while (size > 0) {
+            BitString.ForwardBitStringIterator frontier = frontiers[worklist[--size]].iterator();
+            while (frontier.hasNext()) {
+                int b = frontier.nextIndex();
+                result.set(b);
+                if (!done.get(b)) {
+                    done.set(b);
+                    worklist[size++] = b;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -30,6 +30,14 @@ public abstract class ExFlow
          */
         void meetWith(DataflowObject o);
 
+        /**
+         * Meet with another dataflow object and report whether this
+         * object changed.
+         * @param o the object to meet with
+         * @return true if this object changed
+         */
+        boolean meetWithChanged(DataflowObject o);
+
         /**
          * Copy the dataflow object.
          * @param o the dataflow object to copy
@@ -68,6 +76,16 @@ public abstract class ExFlow
          */
         DataflowObject getExit();
 
+        /** Get the output value of the entry block without copying it.
+         * The object belongs to the analysis and must not be modified.
+         */
+        DataflowObject peekEntry();
+
+        /** Get the input value of the exit block without copying it.
+         * The object belongs to the analysis and must not be modified.
+         */
+        DataflowObject peekExit();
+
         /**
          * Get the input value of the quad.
          * @param q the quad to get the input of
@@ -84,6 +102,24 @@ public abstract class ExFlow
 
 	DataflowObject getAllOut(Quad q);
 
+        /**
+         * Get the input value of the quad on the edge from a predecessor
+         * without copying it.
+         * The object belongs to the analysis and must not be modified.
+         * @param q the quad to get the input of
+         * @param pred the predecessor
+         */
+	DataflowObject peekIn(Quad q, Quad pred);
+
+        /**
+         * Get the output value of the quad on the edge to a successor
+         * without copying it.
+         * The object belongs to the analysis and must not be modified.
+         * @param q the quad to get the output of
+         * @param succ the successor
+         */
+	DataflowObject peekOut(Quad q, Quad succ);
+
         /**
          * Set the value of the input of a quad.
          * @param q the quad
@@ -123,6 +159,17 @@ public abstract class ExFlow
          * @param q the quad on which to perform the transfer function
          */
 	void processQuad(Quad q);
+
+        /**
+         * Apply the transfer function to one quad and report whether
+         * the output (forward) or input (backward) of the quad on any
+         * edge changed.
+         * The new values are met into the old ones, which is the same as
+         * replacing them while the solver descends from top.
+         * @param q the quad on which to perform the transfer function
+         * @return true if any value changed
+         */
+	boolean processQuadChanged(Quad q);
     }
 
     /** The dataflow analysis solver.
@@ -156,6 +203,8 @@ public abstract class ExFlow
             e.printStackTrace();
             System.exit(-1);
         }
+        if (MetricsCollector.isEnabled())
+            solver = new InstrumentedSolver(solver, MetricsCollector.getDefault());
         solver.registerAnalysis(analyzer);
 
         jq_Class[] classes = new jq_Class[args.length-2];
@@ -165,6 +214,13 @@ public abstract class ExFlow
         for (int i=0; i < classes.length; i++) {
             System.out.println("Now analyzing "+classes[i].getName());
             Helper.runPass(classes[i], solver);
+            if (solver instanceof ExSolver) {
+                ExSolver exSolver = (ExSolver)solver;
+                System.out.println("Quad visits: " + exSolver.getQuadVisits()
+                                   + " (" + exSolver.getSavedQuadVisits()
+                                   + " saved over round-robin)");
+                exSolver.resetStatistics();
+            }
         }
     }
 }
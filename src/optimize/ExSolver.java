@@ -1,16 +1,49 @@
 package optimize;
 
-import java.util.Iterator;
+import java.util.Arrays;
 import joeq.Compiler.Quad.ControlFlowGraph;
 import joeq.Compiler.Quad.Quad;
-import joeq.Compiler.Quad.QuadIterator;
-import java.util.*;
 
-public class ExSolver implements ExFlow.Solver {
+public class ExSolver implements ExFlow.Solver, InstrumentedSolver.RoundCounter {
 
     /** the solver's quad analyzer */
     private ExFlow.Analysis analyzer;
 
+    /** the value the In (forward) or Out (backward) of a quad is
+     * computed in */
+    private ExFlow.DataflowObject preval;
+
+    /** the quads and their neighbors, in visiting order */
+    private QuadGraph graph;
+
+    /** whether to use the worklist instead of round-robin iteration */
+    private boolean useWorklist;
+
+    /** the number of quads visited since the last statistics reset */
+    private long quadVisits;
+
+    /** the number of quad visits the round-robin loop would have taken */
+    private long roundRobinVisits;
+
+    /** the number of rounds (worklist sweeps) of the last run */
+    private int rounds;
+
+    /**
+     * Create a solver that uses the worklist algorithm.
+     */
+    public ExSolver() {
+        this(true);
+    }
+
+    /**
+     * Create a solver.
+     * @param useWorklist true to requeue only the neighbors of quads
+     * whose values changed, false to re-walk the whole CFG every round
+     */
+    public ExSolver(boolean useWorklist) {
+        this.useWorklist = useWorklist;
+    }
+
     /**
      * Register a new quad analyzer
      * @param analyzer the analyzer to register
@@ -19,6 +52,38 @@ public class ExSolver implements ExFlow.Solver {
         this.analyzer = analyzer;
     }
 
+    /**
+     * @return the number of rounds the last run took; in worklist mode,
+     * the number of sweeps over the worklist
+     */
+    public int getRounds() {
+        return rounds;
+    }
+
+    /**
+     * @return the number of quads processed since the last reset
+     */
+    public long getQuadVisits() {
+        return quadVisits;
+    }
+
+    /**
+     * @return the number of quad visits the worklist saved since the
+     * last reset compared with the round-robin loop, 0 in round-robin
+     * mode
+     */
+    public long getSavedQuadVisits() {
+        return roundRobinVisits - quadVisits;
+    }
+
+    /**
+     * Reset the quad visit counters.
+     */
+    public void resetStatistics() {
+        quadVisits = 0;
+        roundRobinVisits = 0;
+    }
+
     /**
      * Visit a given control flow graph and runs the analyzer on all its
      * quads in the direction specified by the analyzer.
@@ -27,126 +92,138 @@ public class ExSolver implements ExFlow.Solver {
     public void visitCFG(ControlFlowGraph cfg) {
         // run preprocess
         analyzer.preprocess(cfg);
+        preval = analyzer.newTempVar();
+        graph = new QuadGraph(cfg, analyzer.isForward());
+        rounds = 0;
 
-        // initialize the internal node values
-        QuadIterator quadIterator = new QuadIterator(cfg);
-        /*while (quadIterator.hasNext()) {
-            Quad quad = quadIterator.next();
-            // get a new value and set it to top
-            ExFlow.DataflowObject topValue = analyzer.newTempVar();
-            topValue.setToTop();
-            // set the initial value according to analysis direction
-            if (analyzer.isForward()) {
-                for(Quad succ : quadIterator.successors1()) {
-                    analyzer.setOut(quad, succ, topValue);
-                }
-            } else {
-                for(Quad pred : quadIterator.predecessors1()) {
-                    analyzer.setIn(quad, pred, topValue);
-                }
-            }
-	    }*/
-
-        // iterate over all quads repeatedly as long as there's change in
-        // any node's value
-        boolean changed = true;
-        boolean nodeChanged;
-        while (changed) {
-            // assume there are no more changes in the node values
-            changed = false;
-            // get a new quad iterator
-            quadIterator = new QuadIterator(cfg, analyzer.isForward());
-            while (analyzer.isForward() && quadIterator.hasNext()
-                   || !analyzer.isForward() && quadIterator.hasPrevious()) {
-                // process each quad
-                if (processQuad(quadIterator)) {
-                    changed = true;
-                }
-            }
+        // iterate until there's no change in any node's value
+        if (useWorklist) {
+            solveWorklist();
+        } else {
+            solveRoundRobin();
         }
         
         // depending on the analysis direction, calculate the final value
         // of the entry / exit node
         if (analyzer.isForward()) {
-            calculateExit(cfg);
+            calculateExit();
         } else {
-            calculateEntry(cfg);
+            calculateEntry();
         }
 
         // run postprocess
         analyzer.postprocess(cfg);
     }
 
+    /**
+     * Iterate over all quads repeatedly as long as there's change in
+     * any node's value.
+     */
+    private void solveRoundRobin() {
+        long visits = 0;
+        boolean changed = true;
+        while (changed) {
+            // assume there are no more changes in the node values
+            changed = false;
+            rounds++;
+            // process each quad in visiting order
+            for (int i = 0; i < graph.size(); i++) {
+                visits++;
+                if (processQuad(i)) {
+                    changed = true;
+                }
+            }
+        }
+        quadVisits += visits;
+        roundRobinVisits += visits;
+    }
+
+    /**
+     * Process only the quads whose predecessors' (forward) or
+     * successors' (backward) values changed. The worklist is drained in
+     * sweeps over the round-robin order, so a quad requeued by a quad
+     * earlier in the order is still handled in the current sweep.
+     */
+    private void solveWorklist() {
+        // seed the worklist with every quad
+        int size = graph.size();
+        boolean[] pending = new boolean[size];
+        Arrays.fill(pending, true);
+        int remaining = size;
+        int changedSweeps = 0;
+        while (remaining > 0) {
+            boolean changed = false;
+            rounds++;
+            for (int i = 0; i < size; i++) {
+                if (!pending[i])
+                    continue;
+                pending[i] = false;
+                remaining--;
+                quadVisits++;
+                if (!processQuad(i))
+                    continue;
+                changed = true;
+                // requeue the quads that depend on this one
+                int begin = analyzer.isForward() ? graph.succBegin(i) : graph.predBegin(i);
+                int end = analyzer.isForward() ? graph.succEnd(i) : graph.predEnd(i);
+                for (int k = begin; k < end; k++) {
+                    int j = analyzer.isForward() ? graph.succ(k) : graph.pred(k);
+                    if (j != QuadGraph.BOUNDARY && !pending[j]) {
+                        pending[j] = true;
+                        remaining++;
+                    }
+                }
+            }
+            if (changed)
+                changedSweeps++;
+        }
+        // the round-robin loop needs one sweep per changing sweep plus a
+        // final sweep to detect the fixed point
+        roundRobinVisits += (long)(changedSweeps + 1) * size;
+    }
+
     /**
      * Process a single quad and returns true iff the node's value
-     * changed.
-     * @param quadIterator the quad iterator pointing at the node to
-     * process
+     * changed on any edge.
+     * @param i the index of the quad to process
      * @return true if the node's value changed, false otherwise
      */
-    private boolean processQuad(QuadIterator quadIterator) {
-        // get the quad to process
-        Quad quad =
-            analyzer.isForward()
-            ? quadIterator.next() : quadIterator.previous();
-        // get the quad's In and Out
-        ExFlow.DataflowObject preval = analyzer.newTempVar();
-        Map<Quad, ExFlow.DataflowObject> postval = new HashMap<Quad, ExFlow.DataflowObject>();
-        if(analyzer.isForward())
-            for(Quad succ : quadIterator.successors1())
-                postval.put(succ, analyzer.getOut(quad, succ));
-        else
-            for(Quad pred : quadIterator.predecessors1())
-                postval.put(pred, analyzer.getIn(quad, pred));
+    private boolean processQuad(int i) {
+        Quad quad = graph.getQuad(i);
         // reset In/Out value and meet with all predecessors/successors
 	preval.setToTop();
         if (analyzer.isForward()) {
-	    meetAllPredecessors(preval, quadIterator);
+	    meetAllPredecessors(preval, i);
 	    analyzer.setAllIn(quad, preval);
         } else {
-	    meetAllSuccessors(preval, quadIterator);
+	    meetAllSuccessors(preval, i);
 	    analyzer.setAllOut(quad, preval);
         }
         
         /**///System.out.println("In: " + analyzer.getIn(quad).toString();)
         /**///System.out.println("Out: " + analyzer.getOut(quad).toString());
 
-        // process the quad
-        analyzer.processQuad(quad);
-        /**///System.out.println("In: " + analyzer.getIn(quad).toString());
-        /**///System.out.println("Out: " + analyzer.getOut(quad).toString());
-
-        // check if the node's value changed and return the flag
-        Map<Quad, ExFlow.DataflowObject> newValue = new HashMap<Quad, ExFlow.DataflowObject>();
-        if (analyzer.isForward()) {
-            for(Quad succ : quadIterator.successors1())
-                newValue.put(succ, analyzer.getOut(quad,succ));
-        } else {
-            for(Quad pred : quadIterator.predecessors1())
-                newValue.put(pred, analyzer.getIn(quad,pred));
-        }
-	return !newValue.equals(postval);
+        // process the quad, which reports whether the node's value
+        // changed
+        return analyzer.processQuadChanged(quad);
     }
 
     /**
      * Perform the meet of a dataflow object with all the predecessor
      * dataflow objects.
      * @param quadIn the in object to meet with
-     * @param quadIterator the quad iterator pointing to the quad
+     * @param i the index of the quad whose In is computed
      */
-    private void meetAllPredecessors(ExFlow.DataflowObject quadIn,
-                                     QuadIterator quadIterator) {
-        // get all predecessors
-        Iterator<Quad> iterator = quadIterator.predecessors();
+    private void meetAllPredecessors(ExFlow.DataflowObject quadIn, int i) {
+        Quad current = graph.getQuad(i);
         // meet with all the predecessors' Out dataflow objects
-        Quad quad;
-        while (iterator.hasNext()) {
-            quad = iterator.next();
+        for (int k = graph.predBegin(i); k < graph.predEnd(i); k++) {
+            int pred = graph.pred(k);
             // use the entry value where appropriate
-            if (quad == null) {
-                quadIn.meetWith(analyzer.getEntry());
+            if (pred == QuadGraph.BOUNDARY) {
+                quadIn.meetWith(analyzer.peekEntry());
             } else {
-                quadIn.meetWith(analyzer.getOut(quad, quadIterator.getCurrentQuad()));
+                quadIn.meetWith(analyzer.peekOut(graph.getQuad(pred), current));
             }
         }
     }
@@ -155,21 +232,18 @@ public class ExSolver implements ExFlow.Solver {
      * Perform the meet of a dataflow object with all the successor
      * dataflow objects.
      * @param quadOut the in object to meet with
-     * @param quadIterator the quad iterator pointing to the quad
+     * @param i the index of the quad whose Out is computed
      */
-    private void meetAllSuccessors(ExFlow.DataflowObject quadOut,
-                                   QuadIterator quadIterator) {
-        // get all successors
-        Iterator<Quad> iterator = quadIterator.successors();
+    private void meetAllSuccessors(ExFlow.DataflowObject quadOut, int i) {
+        Quad current = graph.getQuad(i);
         // meet with all the successors' In dataflow objects
-        Quad quad;
-        while (iterator.hasNext()) {
-            quad = iterator.next();
+        for (int k = graph.succBegin(i); k < graph.succEnd(i); k++) {
+            int succ = graph.succ(k);
             // use the exit value where appropriate
-            if (quad == null) {
-                quadOut.meetWith(analyzer.getExit());
+            if (succ == QuadGraph.BOUNDARY) {
+                quadOut.meetWith(analyzer.peekExit());
             } else {
-                quadOut.meetWith(analyzer.getIn(quad, quadIterator.getCurrentQuad()));
+                quadOut.meetWith(analyzer.peekIn(graph.getQuad(succ), current));
             }
         }
     }
@@ -177,21 +251,15 @@ public class ExSolver implements ExFlow.Solver {
     /**
      * Calculate the final value of the exit node, based on the quads that
      * are its predecessors.
-     * @param cfg the control flow graph of the exit node
      */
-    private void calculateExit(ControlFlowGraph cfg) {
+    private void calculateExit() {
         // get a new exit value
         ExFlow.DataflowObject newExit = analyzer.newTempVar();
         // reset its value
         newExit.setToTop();
         // meet its value with all the Outs of the exit's predecessors
-        QuadIterator quadIterator = new QuadIterator(cfg);
-        while (quadIterator.hasNext()) {
-            Quad quad = quadIterator.next();
-            // check if the quad is the exit's predecessor
-            if (isExitPredecessor(quadIterator)) // meet with its Out value
-                newExit.meetWith(analyzer.getOut(quad, null));
-        }
+        for (int k = 0; k < graph.exitPredCount(); k++)
+            newExit.meetWith(analyzer.peekOut(graph.getQuad(graph.exitPred(k)), null));
 	// set the new exit value
 	analyzer.setExit(newExit);
     }
@@ -199,44 +267,16 @@ public class ExSolver implements ExFlow.Solver {
     /**
      * Calculate the final value of the entry node, based on the quads that
      * are its successors.
-     * @param cfg the control flow graph of the entry node
      */
-    private void calculateEntry(ControlFlowGraph cfg) {
+    private void calculateEntry() {
         // get a new entry value
         ExFlow.DataflowObject newEntry = analyzer.newTempVar();
         // reset its value
         newEntry.setToTop();
         // meet its value with all the Ins of the entry's successors
-        QuadIterator quadIterator = new QuadIterator(cfg);
-        while (quadIterator.hasNext()) {
-            Quad quad = quadIterator.next();
-            // check if the quad is the entry's successor
-            if (isEntrySuccessor(quadIterator)) // meet with its In value
-                newEntry.meetWith(analyzer.getIn(quad, null));
-        }
+        for (int k = 0; k < graph.entrySuccCount(); k++)
+            newEntry.meetWith(analyzer.peekIn(graph.getQuad(graph.entrySucc(k)), null));
 	// set the new entry value
 	analyzer.setEntry(newEntry);
     }
-
-    /**
-     * Determine whether a given quad (pointed by a quad iterator) is a
-     * predecessor of the exit node.
-     * @param quadIterator the quad iterator pointing to the quad
-     * @return true if the quad is the exit's predecessor, false otherwise
-     */
-    private boolean isExitPredecessor(QuadIterator quadIterator) {
-        // exit if a successor is null
-        return quadIterator.successors1().contains(null);
-    }
-
-    /**
-     * Determine whether a given quad (pointed by a quad iterator) is a
-     * successor of the entry node.
-     * @param quadIterator the quad iterator pointing to the quad
-     * @return true if the quad is the entry's successor, false otherwise
-     */
-    private boolean isEntrySuccessor(QuadIterator quadIterator) {
-        // entry if a predecessor is null
-        return quadIterator.predecessors1().contains(null);
-    }
 }
@@ -0,0 +1,244 @@
+package optimize;
+
+import java.util.Arrays;
+import joeq.Compiler.Quad.*;
+
+/**
+ * Common part of the expression analyses of {@link LazyCodeMotion}: sets
+ * of expressions of an {@link ExpressionNumbering}, stored per quad.
+ * Every quad has one In and one Out shared by all its edges, and the
+ * boundary (the entry of a forward analysis, the exit of a backward
+ * one) holds no expression. Subclasses give the direction, the meet and
+ * the transfer function.
+ */
+public abstract class ExpressionAnalysis implements ExFlow.Analysis, CFGInfo.User {
+
+    /**
+     * Set of expressions, stored as a bit vector. The meet is either
+     * intersection, with the universe as top, or union, with the empty
+     * set as top.
+     */
+    public static class ExpressionSet implements ExFlow.DataflowObject {
+        private final ExpressionNumbering expressions;
+        private final boolean union;
+        private final long[] words;
+
+        /**
+         * Create an empty set.
+         * @param expressions the numbering of the expressions
+         * @param union true if the meet is union
+         */
+        public ExpressionSet(ExpressionNumbering expressions, boolean union) {
+            this.expressions = expressions;
+            this.union = union;
+            this.words = new long[expressions.wordCount()];
+        }
+
+        public void setToTop() { if (union) clear(); else fill(); }
+        public void setToBottom() { if (union) fill(); else clear(); }
+
+        public void meetWith(ExFlow.DataflowObject o) {
+            meetWithChanged(o);
+        }
+
+        public boolean meetWithChanged(ExFlow.DataflowObject o) {
+            return union ? addAll((ExpressionSet)o) : retainAll((ExpressionSet)o);
+        }
+
+        public void copy(ExFlow.DataflowObject o) {
+            System.arraycopy(((ExpressionSet)o).words, 0, words, 0, words.length);
+        }
+
+        /** Remove all expressions. */
+        public void clear() { Arrays.fill(words, 0L); }
+
+        /** Add all expressions of the numbering. */
+        public void fill() {
+            if (words.length == 0) return;
+            Arrays.fill(words, -1L);
+            words[words.length - 1] = -1L >>> (-expressions.size() & 63);
+        }
+
+        public void add(int e) { if (e >= 0) words[e >>> 6] |= 1L << e; }
+        public void remove(int e) { if (e >= 0) words[e >>> 6] &= ~(1L << e); }
+        public boolean contains(int e) { return e >= 0 && (words[e >>> 6] & (1L << e)) != 0; }
+
+        /**
+         * Keep only the expressions that are also in another set.
+         * @return true if this set changed
+         */
+        public boolean retainAll(ExpressionSet o) {
+            long changed = 0;
+            for (int i = 0; i < words.length; i++) {
+                long w = words[i] & o.words[i];
+                changed |= w ^ words[i];
+                words[i] = w;
+            }
+            return changed != 0;
+        }
+
+        /**
+         * Add all the expressions of another set.
+         * @return true if this set changed
+         */
+        public boolean addAll(ExpressionSet o) {
+            long changed = 0;
+            for (int i = 0; i < words.length; i++) {
+                long w = words[i] | o.words[i];
+                changed |= w ^ words[i];
+                words[i] = w;
+            }
+            return changed != 0;
+        }
+
+        /**
+         * Remove all the expressions of another set.
+         */
+        public void removeAll(ExpressionSet o) {
+            removeAll(o.words);
+        }
+
+        /**
+         * Remove the expressions of a mask, if any.
+         */
+        void removeAll(long[] mask) {
+            if (mask == null) return;
+            for (int i = 0; i < words.length; i++)
+                words[i] &= ~mask[i];
+        }
+
+        /** Replace the contents with their complement. */
+        public void complement() {
+            for (int i = 0; i < words.length; i++)
+                words[i] = ~words[i];
+            if (words.length > 0)
+                words[words.length - 1] &= -1L >>> (-expressions.size() & 63);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof ExpressionSet) {
+                return Arrays.equals(words, ((ExpressionSet)o).words);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(words);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int e = 0; e < expressions.size(); e++) {
+                if (!contains(e)) continue;
+                if (sb.length() > 1) sb.append(", ");
+                sb.append(expressions.toString(e));
+            }
+            return sb.append("]").toString();
+        }
+    }
+
+    protected CFGInfo info;
+    protected ExpressionNumbering expressions;
+    private ExpressionSet[] in, out;
+    private ExpressionSet entry, exit;
+
+    /** the value the transfer function is applied to */
+    private ExpressionSet val;
+
+    public void setCFGInfo(CFGInfo info) { this.info = info; }
+
+    /**
+     * @return true if the meet is union, false if it is intersection
+     */
+    protected abstract boolean isUnion();
+
+    /**
+     * Apply the transfer function of a quad: turn its In into its Out
+     * (forward) or its Out into its In (backward).
+     * @param q the quad
+     * @param val the value to transform in place
+     */
+    protected abstract void transfer(Quad q, ExpressionSet val);
+
+    public void preprocess(ControlFlowGraph cfg) {
+        info = CFGInfo.get(cfg, info);
+        expressions = info.getExpressionNumbering();
+        in = new ExpressionSet[info.getQuadIDLimit()];
+        out = new ExpressionSet[info.getQuadIDLimit()];
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            in[q.getID()] = newTempVar();
+            out[q.getID()] = newTempVar();
+        }
+        entry = newTempVar();
+        exit = newTempVar();
+        if (isForward())
+            entry.clear();
+        else
+            exit.clear();
+        val = newTempVar();
+    }
+
+    public void postprocess(ControlFlowGraph cfg) { }
+
+    /** @return the numbering of the expressions of the last CFG */
+    public ExpressionNumbering getExpressions() { return expressions; }
+
+    /**
+     * @return the In of a quad; it belongs to the analysis and must not
+     * be modified
+     */
+    public ExpressionSet in(Quad q) { return in[q.getID()]; }
+
+    /**
+     * @return the Out of a quad; it belongs to the analysis and must not
+     * be modified
+     */
+    public ExpressionSet out(Quad q) { return out[q.getID()]; }
+
+    public ExFlow.DataflowObject getEntry() { return copyOf(entry); }
+    public ExFlow.DataflowObject getExit() { return copyOf(exit); }
+    public ExFlow.DataflowObject peekEntry() { return entry; }
+    public ExFlow.DataflowObject peekExit() { return exit; }
+
+    public ExFlow.DataflowObject getIn(Quad q, Quad pred) { return copyOf(in(q)); }
+    public ExFlow.DataflowObject getAllIn(Quad q) { return copyOf(in(q)); }
+    public ExFlow.DataflowObject getOut(Quad q, Quad succ) { return copyOf(out(q)); }
+    public ExFlow.DataflowObject getAllOut(Quad q) { return copyOf(out(q)); }
+    public ExFlow.DataflowObject peekIn(Quad q, Quad pred) { return in(q); }
+    public ExFlow.DataflowObject peekOut(Quad q, Quad succ) { return out(q); }
+
+    public void setIn(Quad q, Quad pred, ExFlow.DataflowObject value) { in(q).copy(value); }
+    public void setAllIn(Quad q, ExFlow.DataflowObject value) { in(q).copy(value); }
+    public void setOut(Quad q, Quad succ, ExFlow.DataflowObject value) { out(q).copy(value); }
+    public void setAllOut(Quad q, ExFlow.DataflowObject value) { out(q).copy(value); }
+    public void setEntry(ExFlow.DataflowObject value) { entry.copy(value); }
+    public void setExit(ExFlow.DataflowObject value) { exit.copy(value); }
+
+    public ExpressionSet newTempVar() {
+        ExpressionSet result = new ExpressionSet(expressions, isUnion());
+        result.setToTop();
+        return result;
+    }
+
+    private ExpressionSet copyOf(ExpressionSet value) {
+        ExpressionSet result = newTempVar();
+        result.copy(value);
+        return result;
+    }
+
+    public void processQuad(Quad q) {
+        val.copy(isForward() ? in(q) : out(q));
+        transfer(q, val);
+        (isForward() ? out(q) : in(q)).copy(val);
+    }
+
+    public boolean processQuadChanged(Quad q) {
+        val.copy(isForward() ? in(q) : out(q));
+        transfer(q, val);
+        return (isForward() ? out(q) : in(q)).meetWithChanged(val);
+    }
+}
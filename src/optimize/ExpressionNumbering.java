@@ -0,0 +1,245 @@
+package optimize;
+
+import java.util.*;
+import joeq.Class.jq_Field;
+import joeq.Compiler.Quad.*;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+
+/**
+ * Dense numbering of the expressions of a control flow graph, the
+ * universe of the analyses of {@link LazyCodeMotion}. An expression is
+ * the right-hand side of a quad that computes a value from its operands
+ * alone and cannot throw: arithmetic (Binary and Unary), and the loads
+ * ALoad, Getfield and ALength, whose null and bounds checks are separate
+ * quads in joeq. Two quads compute the same expression when they have
+ * the same operator and the same operands, registers compared by name
+ * and guard operands ignored.
+ * <p>
+ * Each quad kills the expressions whose value it may change: those that
+ * read a register it defines, the array loads if it stores into an
+ * array, the loads of a field it stores into, and all loads if it calls
+ * a method or synchronizes. Loads, integer divisions and remainders are
+ * guarded: they rely on a check before them, so they must not be moved
+ * above a quad that can throw. The numbering of a graph is part of its
+ * {@link CFGInfo}.
+ */
+public class ExpressionNumbering {
+
+    /** a quad computing each expression, by index */
+    private final Quad[] representatives;
+
+    /** the expression each quad computes, by quad ID; -1 if none */
+    private final int[] numbers;
+
+    /** the expressions each quad kills, by quad ID; null if none */
+    private final long[][] kills;
+
+    /** the guarded expressions */
+    private final long[] guarded;
+
+    /**
+     * Number the expressions of a control flow graph.
+     * @param cfg the control flow graph
+     * @param info the metadata of the control flow graph
+     */
+    ExpressionNumbering(ControlFlowGraph cfg, CFGInfo info) {
+        RegisterNumbering registers = info.getRegisterNumbering();
+        numbers = new int[info.getQuadIDLimit()];
+        Arrays.fill(numbers, -1);
+        Map<List<Object>, Integer> indices = new HashMap<List<Object>, Integer>();
+        List<Quad> reps = new ArrayList<Quad>();
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            List<Object> key = getKey(q, registers);
+            if (key == null)
+                continue;
+            Integer e = indices.get(key);
+            if (e == null) {
+                e = reps.size();
+                indices.put(key, e);
+                reps.add(q);
+            }
+            numbers[q.getID()] = e;
+        }
+        representatives = reps.toArray(new Quad[reps.size()]);
+
+        // the expressions reading each register, and the loads by what
+        // they read from memory
+        int words = wordCount();
+        long[][] readers = new long[registers.size()][];
+        long[] arrayLoads = new long[words], loads = new long[words];
+        Map<jq_Field, long[]> fieldLoads = new HashMap<jq_Field, long[]>();
+        guarded = new long[words];
+        for (int e = 0; e < representatives.length; e++) {
+            Quad q = representatives[e];
+            Operator op = q.getOperator();
+            for (Operand o : getOperands(q)) {
+                if (!(o instanceof RegisterOperand))
+                    continue;
+                int r = registers.indexOf(((RegisterOperand)o).getRegister());
+                if (readers[r] == null)
+                    readers[r] = new long[words];
+                set(readers[r], e);
+            }
+            if (op instanceof Operator.ALoad) {
+                set(arrayLoads, e);
+                set(loads, e);
+            } else if (op instanceof Operator.Getfield) {
+                jq_Field f = Operator.Getfield.getField(q).getField();
+                if (!fieldLoads.containsKey(f))
+                    fieldLoads.put(f, new long[words]);
+                set(fieldLoads.get(f), e);
+                set(loads, e);
+            }
+            if (isGuarded(op))
+                set(guarded, e);
+        }
+
+        kills = new long[numbers.length][];
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            Operator op = q.getOperator();
+            long[] kill = new long[words];
+            for (RegisterOperand def : q.getDefinedRegisters()) {
+                long[] r = readers[registers.indexOf(def.getRegister())];
+                if (r != null)
+                    or(kill, r);
+            }
+            if (op instanceof Operator.AStore)
+                or(kill, arrayLoads);
+            else if (op instanceof Operator.Putfield) {
+                long[] f = fieldLoads.get(Operator.Putfield.getField(q).getField());
+                if (f != null)
+                    or(kill, f);
+            } else if (op instanceof Operator.Invoke || op instanceof Operator.Monitor
+                       || op instanceof Operator.MemStore || op instanceof Operator.Special)
+                or(kill, loads);
+            for (long w : kill)
+                if (w != 0) {
+                    kills[q.getID()] = kill;
+                    break;
+                }
+        }
+    }
+
+    /**
+     * @return the key identifying the expression a quad computes, or
+     * null if the quad does not compute an expression
+     */
+    private static List<Object> getKey(Quad q, RegisterNumbering registers) {
+        Operator op = q.getOperator();
+        if (!q.getThrownExceptions().isEmpty())
+            return null;
+        if (op instanceof Operator.Binary) {
+            if (op instanceof Operator.Binary.ADD_P || op instanceof Operator.Binary.SUB_P
+                || op instanceof Operator.Binary.ALIGN_P || op instanceof Operator.Binary.CMP_P)
+                return null;
+        } else if (op instanceof Operator.Unary) {
+            if (op instanceof Operator.Unary.OBJECT_2ADDRESS || op instanceof Operator.Unary.ADDRESS_2OBJECT
+                || op instanceof Operator.Unary.INT_2ADDRESS || op instanceof Operator.Unary.ADDRESS_2INT
+                || op instanceof Operator.Unary.ISNULL_P)
+                return null;
+        } else if (op instanceof Operator.Getfield) {
+            if (Operator.Getfield.getField(q).getField().isVolatile())
+                return null;
+        } else if (!(op instanceof Operator.ALoad || op instanceof Operator.ALength)) {
+            return null;
+        }
+
+        List<Object> key = new ArrayList<Object>();
+        key.add(op);
+        for (Operand o : getOperands(q)) {
+            if (o instanceof RegisterOperand)
+                key.add(registers.indexOf(((RegisterOperand)o).getRegister()));
+            else if (o instanceof Operand.FieldOperand)
+                key.add(((Operand.FieldOperand)o).getField());
+            else
+                key.add(o.toString());
+        }
+        return key;
+    }
+
+    /**
+     * @return the operands an expression is computed from, in order
+     */
+    private static List<Operand> getOperands(Quad q) {
+        Operator op = q.getOperator();
+        if (op instanceof Operator.Binary)
+            return Arrays.asList(Operator.Binary.getSrc1(q), Operator.Binary.getSrc2(q));
+        if (op instanceof Operator.Unary)
+            return Arrays.asList(Operator.Unary.getSrc(q));
+        if (op instanceof Operator.ALoad)
+            return Arrays.asList(Operator.ALoad.getBase(q), Operator.ALoad.getIndex(q));
+        if (op instanceof Operator.Getfield)
+            return Arrays.<Operand>asList(Operator.Getfield.getBase(q), Operator.Getfield.getField(q));
+        return Arrays.asList(Operator.ALength.getSrc(q));
+    }
+
+    private static boolean isGuarded(Operator op) {
+        return op instanceof Operator.ALoad || op instanceof Operator.Getfield
+            || op instanceof Operator.ALength
+            || op instanceof Operator.Binary.DIV_I || op instanceof Operator.Binary.DIV_L
+            || op instanceof Operator.Binary.REM_I || op instanceof Operator.Binary.REM_L;
+    }
+
+    private static void set(long[] words, int i) { words[i >>> 6] |= 1L << i; }
+
+    private static void or(long[] words, long[] o) {
+        for (int i = 0; i < words.length; i++)
+            words[i] |= o[i];
+    }
+
+    /** @return the number of expressions */
+    public int size() { return representatives.length; }
+
+    /** @return the number of words of an expression bit vector */
+    int wordCount() { return (representatives.length + 63) >>> 6; }
+
+    /**
+     * @param q a quad of the control flow graph
+     * @return the expression the quad computes, or -1 if none
+     */
+    public int indexOf(Quad q) {
+        return q.getID() < numbers.length ? numbers[q.getID()] : -1;
+    }
+
+    /**
+     * @param e an expression
+     * @return a quad computing the expression
+     */
+    public Quad getQuad(int e) { return representatives[e]; }
+
+    /**
+     * @param q a quad of the control flow graph
+     * @return the mask of the expressions the quad kills, or null if it
+     * kills none
+     */
+    long[] getKillMask(Quad q) {
+        return q.getID() < kills.length ? kills[q.getID()] : null;
+    }
+
+    /**
+     * @param q a quad of the control flow graph
+     * @return the mask of the expressions that must not be moved above
+     * the quad, or null if any expression may be
+     */
+    long[] getBarrierMask(Quad q) {
+        return q.getThrownExceptions().isEmpty() ? null : guarded;
+    }
+
+    /**
+     * @param e an expression
+     * @return the expression as its operator and operands
+     */
+    public String toString(int e) {
+        Quad q = representatives[e];
+        StringBuilder sb = new StringBuilder(q.getOperator().toString());
+        String sep = " ";
+        for (Operand o : getOperands(q)) {
+            sb.append(sep).append(o instanceof RegisterOperand
+                                  ? ((RegisterOperand)o).getRegister().toString() : o.toString());
+            sep = ", ";
+        }
+        return sb.toString();
+    }
+}
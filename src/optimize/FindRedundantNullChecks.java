@@ -3,6 +3,7 @@ package optimize;
 import joeq.Compiler.Quad.*;
 import joeq.Compiler.Quad.Operand.*;
 import joeq.Compiler.Quad.Operator.*;
+import joeq.Compiler.Quad.RegisterFactory.Register;
 import joeq.Main.Helper;
 import joeq.Class.*;
 import java.util.*;
@@ -10,19 +11,19 @@ import java.util.*;
 
 class FindRedundantNullChecks
 {
-    public static class NullChecker implements Flow.Analysis
+    public static class NullChecker implements Flow.Analysis, CFGInfo.User
     {
 	public static class VarSet implements Flow.DataflowObject
 	{
-	    private Set<String> set;
-	    public static Set<String> universalSet;
-	    public VarSet()
+	    private RegisterSet set;
+	    public VarSet(RegisterNumbering numbering)
 	    {
-		set = new TreeSet<String>(universalSet);
+		set = new RegisterSet(numbering);
+		set.fill();
 	    }
 
-	    public void setToTop() {set = new TreeSet<String>(universalSet); }
-	    public void setToBottom() {set = new TreeSet<String>();}
+	    public void setToTop() {set.fill(); }
+	    public void setToBottom() {set.clear();}
 
 	    public void meetWith(Flow.DataflowObject o)
 	    {
@@ -30,10 +31,16 @@ class FindRedundantNullChecks
 		set.retainAll(a.set);
 	    }
 
+	    public boolean meetWithChanged(Flow.DataflowObject o)
+	    {
+		VarSet a = (VarSet)o;
+		return set.retainAll(a.set);
+	    }
+
 	    public void copy(Flow.DataflowObject o)
 	    {
 		VarSet a = (VarSet)o;
-		set = new TreeSet<String>(a.set);
+		set.copy(a.set);
 	    }
 
 	    @Override
@@ -58,56 +65,37 @@ class FindRedundantNullChecks
 
 	    public void genVar(String v) {set.add(v);}
 	    public void killVar(String v) {set.remove(v);}
+	    public void genVar(Register v) {set.add(v);}
+	    public void killVar(Register v) {set.remove(v);}
 	}
 
+	private CFGInfo info;
+	private RegisterNumbering numbering;
 	private VarSet[] in, out;
 	private VarSet entry, exit;
 
+	public void setCFGInfo(CFGInfo info) { this.info = info; }
+
 	public void preprocess(ControlFlowGraph cfg)
 	{
-	    QuadIterator qit = new QuadIterator(cfg);
-	    int max = 0;
-	    while (qit.hasNext())
-	    {
-		int x = qit.next().getID();
-		if (x > max) max = x;
-	    }
-	    max += 1;
+	    info = CFGInfo.get(cfg, info);
+	    int max = info.getQuadIDLimit();
 	    in = new VarSet[max];
 	    out = new VarSet[max];
-	    qit = new QuadIterator(cfg);
-	    
-	    Set<String> s = new TreeSet<String>();
-	    VarSet.universalSet = s;
 	    
-	    int numargs = cfg.getMethod().getParamTypes().length;
-	    for (int i =0; i < numargs; i++)
-	    {
-		s.add("R"+i);
-	    }
+	    numbering = info.getRegisterNumbering();
 	    
-	    while (qit.hasNext())
-	    {
-		Quad q = qit.next();
-		for (RegisterOperand def : q.getDefinedRegisters()) {
-		    s.add(def.getRegister().toString());
-		}
-		for (RegisterOperand use : q.getUsedRegisters()) {
-		    s.add(use.getRegister().toString());
-		}
-	    }
-	    
-	    entry = new VarSet();
+	    entry = new VarSet(numbering);
 	    entry.setToBottom();
-	    exit = new VarSet();
+	    exit = new VarSet(numbering);
 	    exit.setToBottom();
 	    
-	    transferfn.val = new VarSet();
+	    transferfn.val = new VarSet(numbering);
 	    for (int i = 0; i < in.length; i++)
 	    {
-		in[i] = new VarSet();
+		in[i] = new VarSet(numbering);
 		in[i].setToBottom();
-		out[i] = new VarSet();
+		out[i] = new VarSet(numbering);
 		out[i].setToBottom();
 	    }
 	}
@@ -159,6 +147,14 @@ class FindRedundantNullChecks
 	    return result;
 	}
 
+	public Flow.DataflowObject peekEntry() { return entry; }
+
+	public Flow.DataflowObject peekExit() { return exit; }
+
+	public Flow.DataflowObject peekIn(Quad q) { return in[q.getID()]; }
+
+	public Flow.DataflowObject peekOut(Quad q) { return out[q.getID()]; }
+
 	public void setIn(Quad q, Flow.DataflowObject value)
 	{
 	    in[q.getID()].copy(value);
@@ -179,7 +175,7 @@ class FindRedundantNullChecks
 	    exit.copy(value);
 	}
 
-	public Flow.DataflowObject newTempVar() { return new VarSet(); }
+	public Flow.DataflowObject newTempVar() { return new VarSet(numbering); }
 
 	private TransferFunction transferfn = new TransferFunction();
 
@@ -189,6 +185,12 @@ class FindRedundantNullChecks
 	    out[q.getID()].copy(transferfn.val);
 	}
 
+	public boolean processQuadChanged(Quad q) {
+	    transferfn.val.copy(in[q.getID()]);
+	    transferfn.visitQuad(q);
+	    return out[q.getID()].meetWithChanged(transferfn.val);
+	}
+
 	public static class TransferFunction extends QuadVisitor.EmptyVisitor
 	{
 	    
@@ -198,10 +200,10 @@ class FindRedundantNullChecks
 	    {
 		//System.out.println(q);
 		for (RegisterOperand def : q.getDefinedRegisters())
-		    val.killVar(def.getRegister().toString());
+		    val.killVar(def.getRegister());
 		for (RegisterOperand use : q.getUsedRegisters())
 		    if(q.getOperator() instanceof Operator.NullCheck)
-			val.genVar(use.getRegister().toString());
+			val.genVar(use.getRegister());
 	    }
 	}
     }
@@ -30,6 +30,14 @@ public abstract class Flow
          */
         void meetWith(DataflowObject o);
 
+        /**
+         * Meet with another dataflow object and report whether this
+         * object changed.
+         * @param o the object to meet with
+         * @return true if this object changed
+         */
+        boolean meetWithChanged(DataflowObject o);
+
         /**
          * Copy the dataflow object.
          * @param o the dataflow object to copy
@@ -68,6 +76,16 @@ public abstract class Flow
          */
         DataflowObject getExit();
 
+        /** Get the output value of the entry block without copying it.
+         * The object belongs to the analysis and must not be modified.
+         */
+        DataflowObject peekEntry();
+
+        /** Get the input value of the exit block without copying it.
+         * The object belongs to the analysis and must not be modified.
+         */
+        DataflowObject peekExit();
+
         /**
          * Get the input value of the quad.
          * @param q the quad to get the input of
@@ -80,6 +98,20 @@ public abstract class Flow
          */
         DataflowObject getOut(Quad q);
 
+        /**
+         * Get the input value of the quad without copying it.
+         * The object belongs to the analysis and must not be modified.
+         * @param q the quad to get the input of
+         */
+        DataflowObject peekIn(Quad q);
+
+        /**
+         * Get the output value of the quad without copying it.
+         * The object belongs to the analysis and must not be modified.
+         * @param q the quad to get the output of
+         */
+        DataflowObject peekOut(Quad q);
+
         /**
          * Set the value of the input of a quad.
          * @param q the quad
@@ -115,6 +147,41 @@ public abstract class Flow
          * @param q the quad on which to perform the transfer function
          */
         void processQuad(Quad q);
+
+        /**
+         * Apply the transfer function to one quad and report whether the
+         * output (forward) or input (backward) of the quad changed.
+         * The new value is met into the old one, which is the same as
+         * replacing it while the solver descends from top.
+         * @param q the quad on which to perform the transfer function
+         * @return true if the value changed
+         */
+        boolean processQuadChanged(Quad q);
+    }
+
+    /**
+     * Dataflow analysis whose quad transfer functions can be composed
+     * into a single transfer function for a run of quads.
+     */
+    public static interface BlockAnalysis extends Analysis {
+        /**
+         * Compose the transfer functions of a straight-line run of quads.
+         * @param quads the quads in program order
+         * @return the composed transfer function, or null if the quads
+         * must be processed one at a time
+         */
+        TransferSummary summarize(java.util.List<Quad> quads);
+    }
+
+    /** The composed transfer function of a run of quads.
+     */
+    public static interface TransferSummary {
+        /**
+         * Apply the composed transfer function in place.
+         * @param value the In (forward) or Out (backward) of the run,
+         * replaced by its Out (forward) or In (backward)
+         */
+        void apply(DataflowObject value);
     }
 
     /** The dataflow analysis solver.
@@ -148,6 +215,8 @@ public abstract class Flow
             e.printStackTrace();
             System.exit(-1);
         }
+        if (MetricsCollector.isEnabled())
+            solver = new InstrumentedSolver(solver, MetricsCollector.getDefault());
         solver.registerAnalysis(analyzer);
 
         jq_Class[] classes = new jq_Class[args.length-2];
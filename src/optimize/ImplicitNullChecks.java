@@ -0,0 +1,78 @@
+package optimize;
+
+import java.util.*;
+import joeq.Compiler.Quad.*;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+
+/**
+ * Finds the null checks that could be folded into the dereference right
+ * after them: a check of a register that is immediately followed, in the
+ * same basic block, by a quad dereferencing that register (Getfield,
+ * Putfield, ALoad, AStore, ALength, or the BoundsCheck joeq puts before
+ * array accesses). Nothing runs between the two, so where a dereference
+ * of null traps, as it does in compiled code, the dereference could
+ * raise the NullPointerException at the same point with the same state.
+ * <p>
+ * The checks are only recorded, not removed: joeq's interpreter raises
+ * the exception only for explicit checks, and a dereference of null
+ * there throws past the handlers of the interpreted method. Run it after
+ * the passes that remove redundant checks, so that only the checks left
+ * are recorded.
+ */
+public class ImplicitNullChecks implements ControlFlowGraphVisitor {
+
+    /** the foldable checks, by the dereference they could be folded
+     * into */
+    private final Map<Quad, Quad> foldable;
+
+    /**
+     * @param foldable receives each foldable check, keyed by the
+     * dereference it could be folded into; shared between methods
+     * optimized concurrently, so it must be thread-safe
+     */
+    public ImplicitNullChecks(Map<Quad, Quad> foldable) {
+        this.foldable = foldable;
+    }
+
+    public void visitCFG(ControlFlowGraph cfg) {
+        Quad check = null;
+        BasicBlock checkBlock = null;
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            BasicBlock bb = qit.getCurrentBasicBlock();
+            Operand base = getDereferenced(q);
+            if (check != null && bb == checkBlock && base instanceof RegisterOperand
+                && ((RegisterOperand)base).getRegister()
+                   == ((RegisterOperand)Operator.NullCheck.getSrc(check)).getRegister())
+                foldable.put(q, check);
+            check = null;
+            if (q.getOperator() instanceof Operator.NullCheck
+                && Operator.NullCheck.getSrc(q) instanceof RegisterOperand) {
+                check = q;
+                checkBlock = bb;
+            }
+        }
+    }
+
+    /**
+     * @param q a quad
+     * @return the operand q dereferences, or null if it does not
+     * dereference anything
+     */
+    static Operand getDereferenced(Quad q) {
+        Operator op = q.getOperator();
+        if (op instanceof Operator.Getfield)
+            return Operator.Getfield.getBase(q);
+        if (op instanceof Operator.Putfield)
+            return Operator.Putfield.getBase(q);
+        if (op instanceof Operator.ALoad)
+            return Operator.ALoad.getBase(q);
+        if (op instanceof Operator.AStore)
+            return Operator.AStore.getBase(q);
+        if (op instanceof Operator.ALength)
+            return Operator.ALength.getSrc(q);
+        if (op instanceof Operator.BoundsCheck)
+            return Operator.BoundsCheck.getRef(q);
+        return null;
+    }
+}
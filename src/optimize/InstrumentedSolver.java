@@ -0,0 +1,193 @@
+package optimize;
+
+import java.util.List;
+import joeq.Compiler.Quad.*;
+
+/**
+ * Solver that wraps another solver and records the metrics of every
+ * method it solves. The wrapped solver talks to the analysis through a
+ * counting proxy: every peek at a neighbor's value counts as a meet,
+ * every value stored into the analysis as a copy, and every processed
+ * quad as a visit. Solvers implementing {@link RoundCounter} also report
+ * their number of rounds.
+ */
+public class InstrumentedSolver implements Flow.Solver, ExFlow.Solver {
+
+    /** Solver that reports how many rounds its last run took.
+     */
+    public static interface RoundCounter {
+        /** @return the number of rounds of the last visitCFG */
+        int getRounds();
+    }
+
+    /** the wrapped solver */
+    private final ControlFlowGraphVisitor solver;
+
+    /** where the metrics go */
+    private final MetricsCollector collector;
+
+    /** the class name of the registered analysis */
+    private String analysisName;
+
+    /** the metrics of the method being solved */
+    private SolverMetrics current;
+
+    /**
+     * Wrap a Flow solver.
+     * @param solver the solver to wrap
+     * @param collector where to record the metrics
+     */
+    public InstrumentedSolver(Flow.Solver solver, MetricsCollector collector) {
+        this.solver = solver;
+        this.collector = collector;
+    }
+
+    /**
+     * Wrap an ExFlow solver.
+     * @param solver the solver to wrap
+     * @param collector where to record the metrics
+     */
+    public InstrumentedSolver(ExFlow.Solver solver, MetricsCollector collector) {
+        this.solver = solver;
+        this.collector = collector;
+    }
+
+    public void registerAnalysis(Flow.Analysis analyzer) {
+        if (!(solver instanceof Flow.Solver))
+            throw new IllegalArgumentException("not a Flow solver: " + solver);
+        analysisName = analyzer.getClass().getName();
+        ((Flow.Solver)solver).registerAnalysis(new CountingAnalysis(analyzer));
+    }
+
+    public void registerAnalysis(ExFlow.Analysis analyzer) {
+        if (!(solver instanceof ExFlow.Solver))
+            throw new IllegalArgumentException("not an ExFlow solver: " + solver);
+        analysisName = analyzer.getClass().getName();
+        ((ExFlow.Solver)solver).registerAnalysis(new CountingExAnalysis(analyzer));
+    }
+
+    /**
+     * Solve a control flow graph with the wrapped solver and record its
+     * metrics.
+     * @param cfg the control flow graph to visit
+     */
+    public void visitCFG(ControlFlowGraph cfg) {
+        current = new SolverMetrics();
+        current.method = String.valueOf(cfg.getMethod());
+        current.analysis = analysisName;
+        current.solver = solver.getClass().getName();
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); qit.next())
+            current.quads++;
+
+        long start = System.nanoTime();
+        solver.visitCFG(cfg);
+        long total = System.nanoTime() - start;
+        current.solveNanos = total - current.preprocessNanos - current.postprocessNanos;
+        if (solver instanceof RoundCounter)
+            current.rounds = ((RoundCounter)solver).getRounds();
+        collector.record(current);
+    }
+
+    /** Proxy that counts the calls a Flow solver makes.
+     */
+    private class CountingAnalysis implements Flow.BlockAnalysis {
+        private final Flow.Analysis analysis;
+
+        CountingAnalysis(Flow.Analysis analysis) { this.analysis = analysis; }
+
+        public void preprocess(ControlFlowGraph cfg) {
+            long start = System.nanoTime();
+            analysis.preprocess(cfg);
+            current.preprocessNanos += System.nanoTime() - start;
+        }
+
+        public void postprocess(ControlFlowGraph cfg) {
+            long start = System.nanoTime();
+            analysis.postprocess(cfg);
+            current.postprocessNanos += System.nanoTime() - start;
+        }
+
+        public boolean isForward() { return analysis.isForward(); }
+
+        public Flow.DataflowObject getEntry() { return analysis.getEntry(); }
+        public Flow.DataflowObject getExit() { return analysis.getExit(); }
+        public Flow.DataflowObject getIn(Quad q) { return analysis.getIn(q); }
+        public Flow.DataflowObject getOut(Quad q) { return analysis.getOut(q); }
+
+        public Flow.DataflowObject peekEntry() { current.meets++; return analysis.peekEntry(); }
+        public Flow.DataflowObject peekExit() { current.meets++; return analysis.peekExit(); }
+        public Flow.DataflowObject peekIn(Quad q) { current.meets++; return analysis.peekIn(q); }
+        public Flow.DataflowObject peekOut(Quad q) { current.meets++; return analysis.peekOut(q); }
+
+        public void setIn(Quad q, Flow.DataflowObject value) { current.copies++; analysis.setIn(q, value); }
+        public void setOut(Quad q, Flow.DataflowObject value) { current.copies++; analysis.setOut(q, value); }
+        public void setEntry(Flow.DataflowObject value) { current.copies++; analysis.setEntry(value); }
+        public void setExit(Flow.DataflowObject value) { current.copies++; analysis.setExit(value); }
+
+        public Flow.DataflowObject newTempVar() { return analysis.newTempVar(); }
+
+        public void processQuad(Quad q) { current.quadVisits++; analysis.processQuad(q); }
+
+        public boolean processQuadChanged(Quad q) {
+            current.quadVisits++;
+            return analysis.processQuadChanged(q);
+        }
+
+        /** @return the analysis' summary, or null if it has none */
+        public Flow.TransferSummary summarize(List<Quad> quads) {
+            if (analysis instanceof Flow.BlockAnalysis)
+                return ((Flow.BlockAnalysis)analysis).summarize(quads);
+            return null;
+        }
+    }
+
+    /** Proxy that counts the calls an ExFlow solver makes.
+     */
+    private class CountingExAnalysis implements ExFlow.Analysis {
+        private final ExFlow.Analysis analysis;
+
+        CountingExAnalysis(ExFlow.Analysis analysis) { this.analysis = analysis; }
+
+        public void preprocess(ControlFlowGraph cfg) {
+            long start = System.nanoTime();
+            analysis.preprocess(cfg);
+            current.preprocessNanos += System.nanoTime() - start;
+        }
+
+        public void postprocess(ControlFlowGraph cfg) {
+            long start = System.nanoTime();
+            analysis.postprocess(cfg);
+            current.postprocessNanos += System.nanoTime() - start;
+        }
+
+        public boolean isForward() { return analysis.isForward(); }
+
+        public ExFlow.DataflowObject getEntry() { return analysis.getEntry(); }
+        public ExFlow.DataflowObject getExit() { return analysis.getExit(); }
+        public ExFlow.DataflowObject getIn(Quad q, Quad pred) { return analysis.getIn(q, pred); }
+        public ExFlow.DataflowObject getAllIn(Quad q) { return analysis.getAllIn(q); }
+        public ExFlow.DataflowObject getOut(Quad q, Quad succ) { return analysis.getOut(q, succ); }
+        public ExFlow.DataflowObject getAllOut(Quad q) { return analysis.getAllOut(q); }
+
+        public ExFlow.DataflowObject peekEntry() { current.meets++; return analysis.peekEntry(); }
+        public ExFlow.DataflowObject peekExit() { current.meets++; return analysis.peekExit(); }
+        public ExFlow.DataflowObject peekIn(Quad q, Quad pred) { current.meets++; return analysis.peekIn(q, pred); }
+        public ExFlow.DataflowObject peekOut(Quad q, Quad succ) { current.meets++; return analysis.peekOut(q, succ); }
+
+        public void setIn(Quad q, Quad pred, ExFlow.DataflowObject value) { current.copies++; analysis.setIn(q, pred, value); }
+        public void setAllIn(Quad q, ExFlow.DataflowObject value) { current.copies++; analysis.setAllIn(q, value); }
+        public void setOut(Quad q, Quad succ, ExFlow.DataflowObject value) { current.copies++; analysis.setOut(q, succ, value); }
+        public void setAllOut(Quad q, ExFlow.DataflowObject value) { current.copies++; analysis.setAllOut(q, value); }
+        public void setEntry(ExFlow.DataflowObject value) { current.copies++; analysis.setEntry(value); }
+        public void setExit(ExFlow.DataflowObject value) { current.copies++; analysis.setExit(value); }
+
+        public ExFlow.DataflowObject newTempVar() { return analysis.newTempVar(); }
+
+        public void processQuad(Quad q) { current.quadVisits++; analysis.processQuad(q); }
+
+        public boolean processQuadChanged(Quad q) {
+            current.quadVisits++;
+            return analysis.processQuadChanged(q);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package optimize;
+
+import java.util.*;
+import joeq.Class.jq_Type;
+import joeq.Compiler.Quad.*;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.RegisterFactory.Register;
+
+/**
+ * Partial redundancy elimination by lazy code motion (Knoop, Ruething
+ * and Steffen), on the results of {@link AnticipatedExpressions},
+ * {@link AvailableExpressions}, {@link PostponableExpressions} and
+ * {@link UsedExpressions} solved for the same CFG. Each expression gets
+ * a fresh temporary register:
+ * <ul>
+ * <li>before each quad where the expression is latest and used after,
+ * the temporary is computed;</li>
+ * <li>each quad computing the expression where it is not latest, or is
+ * used after, copies the temporary instead.</li>
+ * </ul>
+ * The quads are the nodes of the problem and placements go before them,
+ * so no edge has to be split. Finally each copy is propagated into the
+ * uses only it reaches, if the temporary is unchanged on the way, and
+ * dropped once they all read the temporary, so a removed computation
+ * costs no quad.
+ */
+public class LazyCodeMotion implements ControlFlowGraphVisitor {
+
+    private final PostponableExpressions postponable;
+    private final UsedExpressions used;
+
+    /** the number of computations inserted into the last CFG */
+    private int inserted;
+
+    /** the number of computations replaced by the temporaries */
+    private int replaced;
+
+    /**
+     * @param postponable the postponable expressions of the CFG
+     * @param used the used expressions of the CFG
+     */
+    public LazyCodeMotion(PostponableExpressions postponable, UsedExpressions used) {
+        this.postponable = postponable;
+        this.used = used;
+    }
+
+    /** @return the number of computations inserted into the last CFG */
+    public int getInserted() { return inserted; }
+
+    /** @return the number of computations of the last CFG replaced by
+     * their temporaries */
+    public int getReplaced() { return replaced; }
+
+    public void visitCFG(ControlFlowGraph cfg) {
+        ExpressionNumbering expressions = used.getExpressions();
+        inserted = 0;
+        replaced = 0;
+
+        // decide everything before the CFG changes
+        List<Quad> quads = new ArrayList<Quad>();
+        List<BasicBlock> blocks = new ArrayList<BasicBlock>();
+        List<ExpressionAnalysis.ExpressionSet> placements = new ArrayList<ExpressionAnalysis.ExpressionSet>();
+        Set<Quad> replace = new HashSet<Quad>();
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            ExpressionAnalysis.ExpressionSet place = used.newTempVar();
+            place.copy(postponable.latest(q));
+            place.retainAll(used.out(q));
+            int e = expressions.indexOf(q);
+            if (e >= 0 && (!postponable.latest(q).contains(e) || used.out(q).contains(e)))
+                replace.add(q);
+            quads.add(q);
+            blocks.add(qit.getCurrentBasicBlock());
+            placements.add(place);
+        }
+
+        RegisterFactory rf = cfg.getRegisterFactory();
+        Register[] temps = new Register[expressions.size()];
+        List<Quad> copies = new ArrayList<Quad>();
+        for (int i = 0; i < quads.size(); i++) {
+            Quad q = quads.get(i);
+            BasicBlock bb = blocks.get(i);
+            int index = bb.getQuadIndex(q);
+            for (int e = 0; e < expressions.size(); e++) {
+                if (!placements.get(i).contains(e))
+                    continue;
+                Quad compute = expressions.getQuad(e).copy(cfg.getNewQuadID());
+                compute.setOp1(new RegisterOperand(getTemp(rf, temps, expressions, e),
+                                                   getType(expressions.getQuad(e))));
+                bb.addQuad(index++, compute);
+                inserted++;
+            }
+            if (replace.contains(q)) {
+                int e = expressions.indexOf(q);
+                RegisterOperand dest = q.getDefinedRegisters().get(0);
+                jq_Type type = getType(expressions.getQuad(e));
+                Quad copy = Operator.Move.create(cfg.getNewQuadID(), Operator.Move.getMoveOp(type),
+                                                 (RegisterOperand)dest.copy(),
+                                                 new RegisterOperand(getTemp(rf, temps, expressions, e), type));
+                bb.replaceQuad(index, copy);
+                copies.add(copy);
+                replaced++;
+            }
+        }
+        if (!copies.isEmpty())
+            propagate(cfg, copies);
+    }
+
+    private static Register getTemp(RegisterFactory rf, Register[] temps,
+                                    ExpressionNumbering expressions, int e) {
+        if (temps[e] == null)
+            temps[e] = rf.makeTempReg(getType(expressions.getQuad(e)));
+        return temps[e];
+    }
+
+    /** @return the type of the value a quad computes */
+    private static jq_Type getType(Quad q) {
+        return q.getDefinedRegisters().get(0).getType();
+    }
+
+    /**
+     * Propagate each copy of a temporary into the uses it alone reaches
+     * when the temporary is not redefined in between, and remove the
+     * copies whose uses all read the temporary.
+     */
+    private static void propagate(ControlFlowGraph cfg, List<Quad> copies) {
+        CFGInfo info = new CFGInfo(cfg);
+        DefUseChains chains = info.getDefUseChains();
+        ReachingDefinitions.Definitions definitions = chains.getDefinitions();
+        Map<Quad, BasicBlock> blockOf = new HashMap<Quad, BasicBlock>();
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); )
+            blockOf.put(qit.next(), qit.getCurrentBasicBlock());
+
+        for (Quad copy : copies) {
+            Register temp = ((RegisterOperand)Operator.Move.getSrc(copy)).getRegister();
+            int d = definitions.numberOf(copy);
+            boolean all = true;
+            for (int k = chains.defUseBegin(d); k < chains.defUseEnd(d); k++) {
+                int u = chains.defUse(k);
+                if (chains.useDefEnd(u) - chains.useDefBegin(u) == 1
+                    && unchanged(temp, copy, chains.getUseQuad(u), blockOf))
+                    chains.getUseOperand(u).setRegister(temp);
+                else
+                    all = false;
+            }
+            if (all)
+                blockOf.get(copy).removeQuad(copy);
+        }
+    }
+
+    /**
+     * @return true if no path from a quad to a later quad, after the
+     * last time it passes the first, defines a register
+     */
+    private static boolean unchanged(Register r, Quad from, Quad to,
+                                     Map<Quad, BasicBlock> blockOf) {
+        BasicBlock bb = blockOf.get(to);
+        int found = scan(bb, bb.getQuadIndex(to) - 1, r, from);
+        if (found != 0)
+            return found > 0;
+        Set<BasicBlock> visited = new HashSet<BasicBlock>();
+        Deque<BasicBlock> worklist = new ArrayDeque<BasicBlock>();
+        worklist.push(bb);
+        while (!worklist.isEmpty()) {
+            BasicBlock b = worklist.pop();
+            // the state at an exception handler entry comes from the
+            // middle of the blocks it handles
+            if (b.isEntry() || b.isExceptionHandlerEntry())
+                return false;
+            for (BasicBlock pred : b.getPredecessors()) {
+                if (!visited.add(pred))
+                    continue;
+                found = scan(pred, pred.size() - 1, r, from);
+                if (found < 0)
+                    return false;
+                if (found == 0)
+                    worklist.push(pred);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scan a block backward from a position.
+     * @return 1 if the quad is found first, -1 if a definition of the
+     * register is, 0 if neither
+     */
+    private static int scan(BasicBlock bb, int i, Register r, Quad from) {
+        for (; i >= 0; i--) {
+            Quad q = bb.getQuad(i);
+            if (q == from)
+                return 1;
+            for (RegisterOperand def : q.getDefinedRegisters())
+                if (def.getRegister() == r)
+                    return -1;
+        }
+        return 0;
+    }
+}
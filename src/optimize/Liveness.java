@@ -3,16 +3,16 @@ package optimize;
 import java.util.*;
 import joeq.Compiler.Quad.*;
 import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.RegisterFactory.Register;
 
-public class Liveness implements Flow.Analysis {
+public class Liveness implements Flow.BlockAnalysis, CFGInfo.User {
 
     public static class VarSet implements Flow.DataflowObject {
-        private Set<String> set;
-        public static Set<String> universalSet;
-        public VarSet() { set = new TreeSet<String>(); }
+        private RegisterSet set;
+        public VarSet(RegisterNumbering numbering) { set = new RegisterSet(numbering); }
 
-        public void setToTop() { set = new TreeSet<String>(); }
-        public void setToBottom() { set = new TreeSet<String>(universalSet); }
+        public void setToTop() { set.clear(); }
+        public void setToBottom() { set.fill(); }
 
         public void meetWith(Flow.DataflowObject o) 
         {
@@ -20,10 +20,16 @@ public class Liveness implements Flow.Analysis {
             set.addAll(a.set);
         }
 
+        public boolean meetWithChanged(Flow.DataflowObject o) 
+        {
+            VarSet a = (VarSet)o;
+            return set.addAll(a.set);
+        }
+
         public void copy(Flow.DataflowObject o) 
         {
             VarSet a = (VarSet) o;
-            set = new TreeSet<String>(a.set);
+            set.copy(a.set);
         }
 
         @Override
@@ -48,50 +54,33 @@ public class Liveness implements Flow.Analysis {
 
         public void genVar(String v) {set.add(v);}
         public void killVar(String v) {set.remove(v);}
+        public void genVar(Register v) {set.add(v);}
+        public void killVar(Register v) {set.remove(v);}
     }
 
+    private CFGInfo info;
+    private RegisterNumbering numbering;
     private VarSet[] in, out;
     private VarSet entry, exit;
 
+    public void setCFGInfo(CFGInfo info) { this.info = info; }
+
     public void preprocess(ControlFlowGraph cfg) {
         System.out.println("Method: "+cfg.getMethod().getName().toString());
         /* Generate initial conditions. */
-        QuadIterator qit = new QuadIterator(cfg);
-        int max = 0;
-        while (qit.hasNext()) {
-            int x = qit.next().getID();
-            if (x > max) max = x;
-        }
-        max += 1;
+        info = CFGInfo.get(cfg, info);
+        int max = info.getQuadIDLimit();
         in = new VarSet[max];
         out = new VarSet[max];
-        qit = new QuadIterator(cfg);
 
-        Set<String> s = new TreeSet<String>();
-        VarSet.universalSet = s;
+        numbering = info.getRegisterNumbering();
 
-        /* Arguments are always there. */
-        int numargs = cfg.getMethod().getParamTypes().length;
-        for (int i = 0; i < numargs; i++) {
-            s.add("R"+i);
-        }
-
-        while (qit.hasNext()) {
-            Quad q = qit.next();
-            for (RegisterOperand def : q.getDefinedRegisters()) {
-                s.add(def.getRegister().toString());
-            }
-            for (RegisterOperand use : q.getUsedRegisters()) {
-                s.add(use.getRegister().toString());
-            }
-        }
-
-        entry = new VarSet();
-        exit = new VarSet();
-        transferfn.val = new VarSet();
+        entry = new VarSet(numbering);
+        exit = new VarSet(numbering);
+        transferfn.val = new VarSet(numbering);
         for (int i=0; i<in.length; i++) {
-            in[i] = new VarSet();
-            out[i] = new VarSet();
+            in[i] = new VarSet(numbering);
+            out[i] = new VarSet(numbering);
         }
 
         System.out.println("Initialization completed.");
@@ -135,6 +124,10 @@ public class Liveness implements Flow.Analysis {
         result.copy(out[q.getID()]); 
         return result;
     }
+    public Flow.DataflowObject peekEntry() { return entry; }
+    public Flow.DataflowObject peekExit() { return exit; }
+    public Flow.DataflowObject peekIn(Quad q) { return in[q.getID()]; }
+    public Flow.DataflowObject peekOut(Quad q) { return out[q.getID()]; }
     public void setIn(Quad q, Flow.DataflowObject value) 
     { 
         in[q.getID()].copy(value); 
@@ -152,7 +145,7 @@ public class Liveness implements Flow.Analysis {
         exit.copy(value); 
     }
 
-    public Flow.DataflowObject newTempVar() { return new VarSet(); }
+    public Flow.DataflowObject newTempVar() { return new VarSet(numbering); }
 
     /* Actually perform the transfer operation on the relevant
      * quad. */
@@ -163,6 +156,35 @@ public class Liveness implements Flow.Analysis {
         transferfn.visitQuad(q);
         in[q.getID()].copy(transferfn.val);
     }
+    public boolean processQuadChanged(Quad q) {
+        transferfn.val.copy(out[q.getID()]);
+        transferfn.visitQuad(q);
+        return in[q.getID()].meetWithChanged(transferfn.val);
+    }
+
+    /* Compose the transfer functions of a run of quads: the registers
+     * used before being defined are generated, the defined ones killed. */
+    public Flow.TransferSummary summarize(List<Quad> quads) {
+        final VarSet uses = new VarSet(numbering);
+        final VarSet defs = new VarSet(numbering);
+        for (int i = quads.size() - 1; i >= 0; i--) {
+            Quad q = quads.get(i);
+            for (RegisterOperand def : q.getDefinedRegisters()) {
+                uses.killVar(def.getRegister());
+                defs.genVar(def.getRegister());
+            }
+            for (RegisterOperand use : q.getUsedRegisters()) {
+                uses.genVar(use.getRegister());
+            }
+        }
+        return new Flow.TransferSummary() {
+            public void apply(Flow.DataflowObject value) {
+                VarSet val = (VarSet)value;
+                val.set.removeAll(defs.set);
+                val.set.addAll(uses.set);
+            }
+        };
+    }
 
     /* The QuadVisitor that actually does the computation */
     public static class TransferFunction extends QuadVisitor.EmptyVisitor {
@@ -170,10 +192,10 @@ public class Liveness implements Flow.Analysis {
         @Override
         public void visitQuad(Quad q) {
             for (RegisterOperand def : q.getDefinedRegisters()) {
-                val.killVar(def.getRegister().toString());
+                val.killVar(def.getRegister());
             }
             for (RegisterOperand use : q.getUsedRegisters()) {
-                val.genVar(use.getRegister().toString());
+                val.genVar(use.getRegister());
             }
         }
     }
@@ -0,0 +1,146 @@
+package optimize;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.ObjectName;
+
+/**
+ * Collects the metrics of instrumented solver runs. The default
+ * collector is registered as the MBean <tt>optimize:type=SolverMetrics</tt>
+ * and, if the <tt>optimize.metrics.file</tt> system property names a
+ * file, appends every run to it as a line of JSON.
+ */
+public class MetricsCollector implements MetricsCollectorMBean {
+
+    /** the number of runs getHottestRuns reports */
+    private static final int HOTTEST = 10;
+
+    private static MetricsCollector defaultCollector;
+
+    private final List<SolverMetrics> runs = new ArrayList<SolverMetrics>();
+    private Writer report;
+
+    /**
+     * Create a collector.
+     * @param report the JSON Lines report to append runs to, or null
+     */
+    public MetricsCollector(Writer report) {
+        this.report = report;
+    }
+
+    /**
+     * @return true if the <tt>optimize.metrics</tt> or
+     * <tt>optimize.metrics.file</tt> system property asks for metrics
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("optimize.metrics")
+            || System.getProperty("optimize.metrics.file") != null;
+    }
+
+    /**
+     * @return the collector shared by the whole run, created and
+     * registered with the platform MBean server on first use
+     */
+    public static synchronized MetricsCollector getDefault() {
+        if (defaultCollector == null) {
+            Writer report = null;
+            String file = System.getProperty("optimize.metrics.file");
+            if (file != null) {
+                try {
+                    report = new FileWriter(file, true);
+                } catch (IOException e) {
+                    System.err.println("Error opening metrics file " + file);
+                    e.printStackTrace();
+                }
+            }
+            defaultCollector = new MetricsCollector(report);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    defaultCollector, new ObjectName("optimize:type=SolverMetrics"));
+            } catch (Exception e) {
+                System.err.println("Error registering the metrics MBean");
+                e.printStackTrace();
+            }
+        }
+        return defaultCollector;
+    }
+
+    /**
+     * Record the metrics of a run.
+     * @param metrics the metrics to record
+     */
+    public synchronized void record(SolverMetrics metrics) {
+        runs.add(metrics);
+        if (report != null) {
+            try {
+                report.write(metrics.toJson());
+                report.write('\n');
+                report.flush();
+            } catch (IOException e) {
+                System.err.println("Error writing metrics, disabling the report");
+                e.printStackTrace();
+                report = null;
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the recorded runs, in the order they finished
+     */
+    public synchronized List<SolverMetrics> getRuns() {
+        return new ArrayList<SolverMetrics>(runs);
+    }
+
+    public synchronized int getRunCount() {
+        return runs.size();
+    }
+
+    public synchronized long getTotalQuadVisits() {
+        long total = 0;
+        for (SolverMetrics m : runs)
+            total += m.getQuadVisits();
+        return total;
+    }
+
+    public synchronized long getTotalMeets() {
+        long total = 0;
+        for (SolverMetrics m : runs)
+            total += m.getMeets();
+        return total;
+    }
+
+    public synchronized long getTotalCopies() {
+        long total = 0;
+        for (SolverMetrics m : runs)
+            total += m.getCopies();
+        return total;
+    }
+
+    public synchronized long getTotalNanos() {
+        long total = 0;
+        for (SolverMetrics m : runs)
+            total += m.getTotalNanos();
+        return total;
+    }
+
+    public synchronized String[] getHottestRuns() {
+        List<SolverMetrics> sorted = new ArrayList<SolverMetrics>(runs);
+        Collections.sort(sorted, new Comparator<SolverMetrics>() {
+            public int compare(SolverMetrics a, SolverMetrics b) {
+                long x = a.getTotalNanos(), y = b.getTotalNanos();
+                return x > y ? -1 : x < y ? 1 : 0;
+            }
+        });
+        String[] result = new String[Math.min(HOTTEST, sorted.size())];
+        for (int i = 0; i < result.length; i++)
+            result[i] = sorted.get(i).toString();
+        return result;
+    }
+
+    public synchronized void reset() {
+        runs.clear();
+    }
+}
@@ -0,0 +1,23 @@
+package optimize;
+
+/**
+ * Management interface of the {@link MetricsCollector}.
+ */
+public interface MetricsCollectorMBean {
+    /** @return the number of solver runs recorded */
+    int getRunCount();
+
+    long getTotalQuadVisits();
+
+    long getTotalMeets();
+
+    long getTotalCopies();
+
+    long getTotalNanos();
+
+    /** @return the most expensive runs, most expensive first */
+    String[] getHottestRuns();
+
+    /** Forget all recorded runs. */
+    void reset();
+}
@@ -0,0 +1,340 @@
+package optimize;
+
+import java.util.*;
+import joeq.Class.*;
+import joeq.Compiler.Quad.*;
+import joeq.Compiler.Quad.Operand.AConstOperand;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+
+/**
+ * The reference fields of a set of classes that are never null once the
+ * object (or, for a static field, the class) is initialized. Only
+ * private and final fields are considered, since no other class can
+ * store into them; a field qualifies when
+ * <ul>
+ * <li>every store into it in its class stores a value {@link NullChecker}
+ * knows to be non-null, and</li>
+ * <li>every constructor (the class initializer for a static field)
+ * stores into it on every path to a normal return, before anything
+ * reads it and before any call other than to a constructor of the same
+ * class or of java.lang.Object could run code that reads it.</li>
+ * </ul>
+ * Instance fields of classes that extend anything but java.lang.Object
+ * are left out, since a superclass constructor may call an overriding
+ * method before the fields are set. The stores are checked optimistically:
+ * a value loaded from a field that is still a candidate counts as
+ * non-null, and candidates are dropped until none fails.
+ */
+public class NonNullFields {
+
+    /** the fields found non-null, and the candidates while inferring */
+    private final Set<jq_Field> nonNull = new HashSet<jq_Field>();
+
+    /** the summaries the null analyses use at calls, or null */
+    private final NullSummaries summaries;
+
+    /**
+     * Infer the non-null fields of the given classes.
+     * @param classes the classes whose fields to infer; null entries,
+     * classes Helper.load could not load, are skipped
+     * @param summaries the null summaries of the methods called, or null
+     */
+    public NonNullFields(jq_Class[] classes, NullSummaries summaries) {
+        this.summaries = summaries;
+        for (jq_Class c : classes)
+            if (c != null)
+                infer(c);
+    }
+
+    /**
+     * @param f a field
+     * @return true if the field is never null after initialization
+     */
+    public boolean isNonNull(jq_Field f) { return nonNull.contains(f); }
+
+    /**
+     * @param q a quad
+     * @return true if the quad loads a field that is never null
+     */
+    public boolean loadsNonNull(Quad q) {
+        Operator op = q.getOperator();
+        if (op instanceof Operator.Getfield)
+            return nonNull.contains(Operator.Getfield.getField(q).getField());
+        if (op instanceof Operator.Getstatic)
+            return nonNull.contains(Operator.Getstatic.getField(q).getField());
+        return false;
+    }
+
+    private void infer(jq_Class c) {
+        List<ControlFlowGraph> cfgs = ParallelDriver.getCFGs(new jq_Class[] { c });
+        jq_ClassInitializer clinit = c.getClassInitializer();
+        ControlFlowGraph clinitCFG = null;
+        if (clinit != null && clinit.getBytecode() != null) {
+            clinitCFG = CodeCache.getCode(clinit);
+            cfgs.add(clinitCFG);
+        }
+
+        Set<jq_Field> candidates = new HashSet<jq_Field>();
+        if (c.getSuperclass() == PrimordialClassLoader.getJavaLangObject())
+            for (jq_Field f : c.getDeclaredInstanceFields())
+                if (isCandidate(f))
+                    candidates.add(f);
+        if (clinitCFG != null)
+            for (jq_Field f : c.getDeclaredStaticFields())
+                if (isCandidate(f))
+                    candidates.add(f);
+
+        while (!candidates.isEmpty()) {
+            nonNull.addAll(candidates);
+            Set<jq_Field> failed = new HashSet<jq_Field>();
+            for (ControlFlowGraph cfg : cfgs)
+                checkStores(cfg, candidates, failed);
+            Map<jq_Method, Set<jq_Field>> constructors = new HashMap<jq_Method, Set<jq_Field>>();
+            for (ControlFlowGraph cfg : cfgs) {
+                jq_Method m = cfg.getMethod();
+                if (m instanceof jq_Initializer || cfg == clinitCFG)
+                    checkInitialization(cfg, c, candidates, constructors, failed);
+            }
+            nonNull.removeAll(failed);
+            if (failed.isEmpty())
+                return;
+            candidates.removeAll(failed);
+        }
+    }
+
+    private static boolean isCandidate(jq_Field f) {
+        return f.getType().isReferenceType() && (f.isPrivate() || f.isFinal());
+    }
+
+    /**
+     * Fail the candidates that a method may store null into.
+     */
+    private void checkStores(ControlFlowGraph cfg, Set<jq_Field> candidates,
+                             Set<jq_Field> failed) {
+        NullChecker checker = new NullChecker(summaries, this, false);
+        ExFlow.Solver solver = new ExSolver();
+        solver.registerAnalysis(checker);
+        solver.visitCFG(cfg);
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            Operand src;
+            jq_Field f;
+            if (q.getOperator() instanceof Operator.Putfield) {
+                src = Operator.Putfield.getSrc(q);
+                f = Operator.Putfield.getField(q).getField();
+            } else if (q.getOperator() instanceof Operator.Putstatic) {
+                src = Operator.Putstatic.getSrc(q);
+                f = Operator.Putstatic.getField(q).getField();
+            } else {
+                continue;
+            }
+            if (!candidates.contains(f))
+                continue;
+            NullChecker.VarSet in = (NullChecker.VarSet)checker.getAllIn(q);
+            boolean stored = src instanceof RegisterOperand
+                ? in.contains(((RegisterOperand)src).getRegister())
+                : src instanceof AConstOperand && ((AConstOperand)src).getValue() != null;
+            if (!stored)
+                failed.add(f);
+        }
+    }
+
+    /**
+     * Fail the candidates a constructor or class initializer may read or
+     * leave unset before it returns.
+     * @param constructors the candidates each constructor of the class
+     * sets, filled in as they are checked
+     * @return the candidates the method sets
+     */
+    private Set<jq_Field> checkInitialization(ControlFlowGraph cfg, jq_Class c,
+                                              Set<jq_Field> candidates,
+                                              Map<jq_Method, Set<jq_Field>> constructors,
+                                              Set<jq_Field> failed) {
+        jq_Method method = cfg.getMethod();
+        if (constructors.containsKey(method))
+            return constructors.get(method);
+        // a constructor chain never loops, but guard against it anyway
+        constructors.put(method, Collections.<jq_Field>emptySet());
+
+        // the fields this method initializes: static ones in the class
+        // initializer, instance ones in a constructor
+        boolean isStatic = method.isStatic();
+        Set<jq_Field> fields = new HashSet<jq_Field>();
+        for (jq_Field f : candidates)
+            if (f.isStatic() == isStatic)
+                fields.add(f);
+
+        // the sources of the definitions of each register; null for
+        // anything but a move
+        List<BasicBlock> blocks = new ArrayList<BasicBlock>(cfg.reversePostOrder(cfg.entry()));
+        Set<BasicBlock> seen = new HashSet<BasicBlock>(blocks);
+        Map<String, List<Operand>> sources = new HashMap<String, List<Operand>>();
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            for (RegisterOperand def : q.getDefinedRegisters()) {
+                String name = def.getRegister().toString();
+                if (!sources.containsKey(name))
+                    sources.put(name, new ArrayList<Operand>());
+                sources.get(name).add(q.getOperator() instanceof Operator.Move
+                                      ? Operator.Move.getSrc(q) : null);
+            }
+            if (seen.add(qit.getCurrentBasicBlock()))
+                blocks.add(qit.getCurrentBasicBlock());
+        }
+
+        // the registers that always hold the receiver: R0 if it is never
+        // overwritten, and the registers only ever moved from those
+        Set<String> receivers = new HashSet<String>();
+        if (!isStatic && !sources.containsKey("R0")) {
+            receivers.add("R0");
+            receivers.addAll(sources.keySet());
+            boolean dropped = true;
+            while (dropped) {
+                dropped = false;
+                for (Iterator<String> it = receivers.iterator(); it.hasNext(); ) {
+                    String name = it.next();
+                    if (name.equals("R0"))
+                        continue;
+                    for (Operand src : sources.get(name))
+                        if (!isReceiver(src, receivers)) {
+                            it.remove();
+                            dropped = true;
+                            break;
+                        }
+                }
+            }
+        }
+
+        // the fields set on entry to each block, until nothing changes;
+        // exception handlers assume nothing is set
+        Map<BasicBlock, Set<jq_Field>> out = new HashMap<BasicBlock, Set<jq_Field>>();
+        Set<jq_Field> returned = new HashSet<jq_Field>(fields);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            returned = new HashSet<jq_Field>(fields);
+            for (BasicBlock bb : blocks) {
+                Set<jq_Field> set = entrySet(bb, cfg, fields, out);
+                Set<String> aliases = new HashSet<String>(receivers);
+                for (int i = 0; i < bb.size(); i++) {
+                    Quad q = bb.getQuad(i);
+                    Operator op = q.getOperator();
+                    if (op instanceof Operator.Putfield
+                        && isReceiver(Operator.Putfield.getBase(q), aliases))
+                        set.add(Operator.Putfield.getField(q).getField());
+                    else if (op instanceof Operator.Putstatic)
+                        set.add(Operator.Putstatic.getField(q).getField());
+                    else if (op instanceof Operator.Invoke
+                             && isConstructorCall(q, c, aliases))
+                        set.addAll(checkInitialization(
+                            CodeCache.getCode(Operator.Invoke.getMethod(q).getMethod()),
+                            c, candidates, constructors, failed));
+                    else if (op instanceof Operator.Return
+                             && !(op instanceof Operator.Return.THROW_A))
+                        returned.retainAll(set);
+                    updateAliases(q, aliases);
+                }
+                Set<jq_Field> old = out.put(bb, set);
+                if (!set.equals(old))
+                    changed = true;
+            }
+        }
+
+        // fail the fields read, or exposed to other code, before they are set
+        for (BasicBlock bb : blocks) {
+            Set<jq_Field> set = entrySet(bb, cfg, fields, out);
+            Set<String> aliases = new HashSet<String>(receivers);
+            for (int i = 0; i < bb.size(); i++) {
+                Quad q = bb.getQuad(i);
+                Operator op = q.getOperator();
+                if (op instanceof Operator.Getfield || op instanceof Operator.Getstatic) {
+                    jq_Field f = op instanceof Operator.Getfield
+                        ? Operator.Getfield.getField(q).getField()
+                        : Operator.Getstatic.getField(q).getField();
+                    if (fields.contains(f) && !set.contains(f))
+                        failed.add(f);
+                } else if (op instanceof Operator.Putfield
+                           && isReceiver(Operator.Putfield.getBase(q), aliases)) {
+                    set.add(Operator.Putfield.getField(q).getField());
+                } else if (op instanceof Operator.Putstatic) {
+                    set.add(Operator.Putstatic.getField(q).getField());
+                } else if (op instanceof Operator.Invoke) {
+                    if (isConstructorCall(q, c, aliases)) {
+                        set.addAll(constructors.get(Operator.Invoke.getMethod(q).getMethod()));
+                    } else if (!isObjectConstructorCall(q, aliases)) {
+                        for (jq_Field f : fields)
+                            if (!set.contains(f))
+                                failed.add(f);
+                    }
+                }
+                updateAliases(q, aliases);
+            }
+        }
+        for (jq_Field f : fields)
+            if (!returned.contains(f))
+                failed.add(f);
+
+        constructors.put(method, returned);
+        return returned;
+    }
+
+    /**
+     * @return the fields set on entry to a block: none at the entry and
+     * at exception handlers, otherwise those set at the end of every
+     * predecessor seen so far
+     */
+    private static Set<jq_Field> entrySet(BasicBlock bb, ControlFlowGraph cfg,
+                                          Set<jq_Field> fields,
+                                          Map<BasicBlock, Set<jq_Field>> out) {
+        Set<jq_Field> set = new HashSet<jq_Field>();
+        if (bb == cfg.entry() || bb.isExceptionHandlerEntry())
+            return set;
+        set.addAll(fields);
+        for (BasicBlock pred : bb.getPredecessors())
+            if (out.containsKey(pred))
+                set.retainAll(out.get(pred));
+        return set;
+    }
+
+    /**
+     * Track the registers a quad makes hold the receiver, or stop
+     * holding it.
+     */
+    private static void updateAliases(Quad q, Set<String> aliases) {
+        boolean copy = q.getOperator() instanceof Operator.Move
+            && isReceiver(Operator.Move.getSrc(q), aliases);
+        for (RegisterOperand def : q.getDefinedRegisters()) {
+            if (copy)
+                aliases.add(def.getRegister().toString());
+            else
+                aliases.remove(def.getRegister().toString());
+        }
+    }
+
+    private static boolean isReceiver(Operand o, Set<String> receivers) {
+        return o instanceof RegisterOperand
+            && receivers.contains(((RegisterOperand)o).getRegister().toString());
+    }
+
+    /**
+     * @return true if the quad calls another constructor of the class on
+     * the receiver
+     */
+    private static boolean isConstructorCall(Quad q, jq_Class c, Set<String> receivers) {
+        jq_Method m = Operator.Invoke.getMethod(q).getMethod();
+        return m instanceof jq_Initializer && m.getDeclaringClass() == c
+            && m.getBytecode() != null
+            && isReceiver(Operator.Invoke.getParamList(q).get(0), receivers);
+    }
+
+    /**
+     * @return true if the quad calls java.lang.Object's constructor on
+     * the receiver
+     */
+    private static boolean isObjectConstructorCall(Quad q, Set<String> receivers) {
+        jq_Method m = Operator.Invoke.getMethod(q).getMethod();
+        return m instanceof jq_Initializer
+            && m.getDeclaringClass() == PrimordialClassLoader.getJavaLangObject()
+            && isReceiver(Operator.Invoke.getParamList(q).get(0), receivers);
+    }
+}
@@ -0,0 +1,237 @@
+package optimize;
+
+import java.util.*;
+import joeq.Compiler.Quad.*;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.RegisterFactory.Register;
+
+/**
+ * Hoists the null checks of loop-invariant registers out of natural
+ * loops. A check moves to the end of the loop's preheader, so it runs
+ * once per loop entry; {@link NullChecker} then finds the other checks
+ * of the register in the loop redundant. Loops are found from the back
+ * edges of the {@link DominatorTree} and visited innermost first, so a
+ * check can leave several nested loops.
+ * <p>
+ * A check of register r in loop L is hoisted when
+ * <ul>
+ * <li>L has a preheader: a single predecessor from outside the loop,
+ * whose only successor is the header;</li>
+ * <li>nothing in L defines r;</li>
+ * <li>the check's block dominates every latch and every block leaving
+ * L, so every iteration runs it before the loop can be left;</li>
+ * <li>everything that can run in L before the check has no side
+ * effects and can throw nothing but a NullPointerException, so the
+ * first iteration behaves the same whichever check fails first;</li>
+ * <li>none of it is in a loop nested in L, which might never be left:
+ * the hoisted check would then throw where the program hung; and</li>
+ * <li>no exception handler covers the preheader or L, so the register
+ * state at the throw is never observed.</li>
+ * </ul>
+ */
+public class NullCheckHoister implements ControlFlowGraphVisitor, CFGInfo.User {
+
+    private CFGInfo info;
+
+    /** the number of null checks hoisted out of the last CFG's loops */
+    private int hoisted;
+
+    public void setCFGInfo(CFGInfo info) { this.info = info; }
+
+    /** @return the number of null checks hoisted out of the last CFG's
+     * loops, counting a check once per loop it leaves */
+    public int getHoisted() { return hoisted; }
+
+    public void visitCFG(ControlFlowGraph cfg) {
+        info = CFGInfo.get(cfg, info);
+        DominatorTree tree = info.getDominatorTree();
+        hoisted = 0;
+
+        // the natural loop of each back edge; back edges to the same
+        // header make one loop
+        Map<BasicBlock, Set<BasicBlock>> loops = new LinkedHashMap<BasicBlock, Set<BasicBlock>>();
+        for (BasicBlock bb : tree.getBlocks())
+            for (BasicBlock succ : bb.getSuccessors())
+                if (tree.isReachable(succ) && tree.dominates(succ, bb)) {
+                    if (!loops.containsKey(succ))
+                        loops.put(succ, new HashSet<BasicBlock>(Collections.singleton(succ)));
+                    addLoopBody(loops.get(succ), bb);
+                }
+
+        // innermost first
+        List<Map.Entry<BasicBlock, Set<BasicBlock>>> order =
+            new ArrayList<Map.Entry<BasicBlock, Set<BasicBlock>>>(loops.entrySet());
+        Collections.sort(order, new Comparator<Map.Entry<BasicBlock, Set<BasicBlock>>>() {
+            public int compare(Map.Entry<BasicBlock, Set<BasicBlock>> a,
+                               Map.Entry<BasicBlock, Set<BasicBlock>> b) {
+                return a.getValue().size() - b.getValue().size();
+            }
+        });
+        for (Map.Entry<BasicBlock, Set<BasicBlock>> loop : order)
+            hoist(tree, loop.getKey(), loop.getValue());
+    }
+
+    /**
+     * Add the blocks that reach a latch without passing the header.
+     */
+    private static void addLoopBody(Set<BasicBlock> body, BasicBlock latch) {
+        Deque<BasicBlock> worklist = new ArrayDeque<BasicBlock>();
+        if (body.add(latch))
+            worklist.push(latch);
+        while (!worklist.isEmpty())
+            for (BasicBlock pred : worklist.pop().getPredecessors())
+                if (body.add(pred))
+                    worklist.push(pred);
+    }
+
+    /**
+     * Hoist the checks that qualify out of one loop.
+     */
+    private void hoist(DominatorTree tree, BasicBlock header, Set<BasicBlock> body) {
+        BasicBlock preheader = null;
+        for (BasicBlock pred : header.getPredecessors()) {
+            if (body.contains(pred))
+                continue;
+            if (preheader != null)
+                return;
+            preheader = pred;
+        }
+        if (preheader == null || preheader.isEntry() || header.isExceptionHandlerEntry()
+            || preheader.getNumberOfSuccessors() != 1
+            || !preheader.getExceptionHandlers().isEmpty())
+            return;
+
+        // the registers the loop defines, and the blocks every
+        // iteration has to pass through
+        Set<Register> defined = new HashSet<Register>();
+        List<BasicBlock> mustPass = new ArrayList<BasicBlock>();
+        for (BasicBlock bb : body) {
+            if (!bb.getExceptionHandlers().isEmpty())
+                return;
+            for (int i = 0; i < bb.size(); i++)
+                for (RegisterOperand def : bb.getQuad(i).getDefinedRegisters())
+                    defined.add(def.getRegister());
+            for (BasicBlock succ : bb.getSuccessors())
+                if (succ == header || !body.contains(succ)) {
+                    mustPass.add(bb);
+                    break;
+                }
+        }
+
+        // walk forward from the header through quiet quads only; the
+        // first check of an invariant register that every iteration
+        // passes is hoisted
+        Set<Register> seen = new HashSet<Register>();
+        for (BasicBlock bb : tree.getBlocks()) {
+            if (!body.contains(bb) || !dominatesAll(tree, bb, mustPass)
+                || !quietBefore(bb, header, body))
+                continue;
+            for (int i = 0; i < bb.size(); i++) {
+                Quad q = bb.getQuad(i);
+                if (q.getOperator() instanceof Operator.NullCheck
+                    && Operator.NullCheck.getSrc(q) instanceof RegisterOperand) {
+                    Register r = ((RegisterOperand)Operator.NullCheck.getSrc(q)).getRegister();
+                    if (!defined.contains(r) && seen.add(r)) {
+                        bb.removeQuad(i--);
+                        Quad last = preheader.getLastQuad();
+                        if (last != null && last.getOperator() instanceof Operator.Goto)
+                            preheader.addQuad(preheader.size() - 1, q);
+                        else
+                            preheader.appendQuad(q);
+                        hoisted++;
+                        continue;
+                    }
+                }
+                if (!isQuiet(q))
+                    break;
+            }
+        }
+    }
+
+    private static boolean dominatesAll(DominatorTree tree, BasicBlock bb,
+                                        List<BasicBlock> blocks) {
+        for (BasicBlock b : blocks)
+            if (!tree.dominates(bb, b))
+                return false;
+        return true;
+    }
+
+    /**
+     * @return true if every quad of the loop that can run before a
+     * block in the same iteration is quiet, and the blocks before it
+     * form no cycle
+     */
+    private static boolean quietBefore(BasicBlock bb, BasicBlock header,
+                                       Set<BasicBlock> body) {
+        if (bb == header)
+            return true;
+        Set<BasicBlock> before = new HashSet<BasicBlock>();
+        Deque<BasicBlock> worklist = new ArrayDeque<BasicBlock>();
+        worklist.push(bb);
+        while (!worklist.isEmpty()) {
+            BasicBlock b = worklist.pop();
+            if (b == header)
+                continue;
+            for (BasicBlock pred : b.getPredecessors())
+                if (body.contains(pred) && before.add(pred))
+                    worklist.push(pred);
+        }
+        for (BasicBlock b : before)
+            for (int i = 0; i < b.size(); i++)
+                if (!isQuiet(b.getQuad(i)))
+                    return false;
+        // the first time the block is reached, only the blocks before it
+        // have run; a cycle among them, an inner loop, may never end
+        before.remove(bb);
+        return !hasCycle(before, header);
+    }
+
+    /**
+     * @return true if the edges between the blocks, leaving out the edges
+     * back to the header, form a cycle
+     */
+    private static boolean hasCycle(Set<BasicBlock> blocks, BasicBlock header) {
+        // remove the blocks with no predecessor left until none is left,
+        // which fails exactly when there is a cycle
+        Map<BasicBlock, Integer> preds = new HashMap<BasicBlock, Integer>();
+        for (BasicBlock b : blocks)
+            preds.put(b, 0);
+        for (BasicBlock b : blocks)
+            for (BasicBlock succ : b.getSuccessors())
+                if (succ != header && preds.containsKey(succ))
+                    preds.put(succ, preds.get(succ) + 1);
+        Deque<BasicBlock> worklist = new ArrayDeque<BasicBlock>();
+        for (BasicBlock b : blocks)
+            if (preds.get(b) == 0)
+                worklist.push(b);
+        int removed = 0;
+        while (!worklist.isEmpty()) {
+            BasicBlock b = worklist.pop();
+            removed++;
+            for (BasicBlock succ : b.getSuccessors()) {
+                if (succ == header || !preds.containsKey(succ))
+                    continue;
+                int left = preds.get(succ) - 1;
+                preds.put(succ, left);
+                if (left == 0)
+                    worklist.push(succ);
+            }
+        }
+        return removed < blocks.size();
+    }
+
+    /**
+     * @return true if the quad has no side effects and can throw
+     * nothing but a NullPointerException
+     */
+    private static boolean isQuiet(Quad q) {
+        Operator op = q.getOperator();
+        if (op instanceof Operator.Binary)
+            return !(op instanceof Operator.Binary.DIV_I || op instanceof Operator.Binary.DIV_L
+                     || op instanceof Operator.Binary.REM_I || op instanceof Operator.Binary.REM_L);
+        return op instanceof Operator.Move || op instanceof Operator.Unary
+            || op instanceof Operator.IntIfCmp || op instanceof Operator.Goto
+            || op instanceof Operator.NullCheck || op instanceof Operator.Getfield
+            || op instanceof Operator.ALength || op instanceof Operator.InstanceOf;
+    }
+}
@@ -3,23 +3,28 @@ package optimize;
 import joeq.Compiler.Quad.*;
 import joeq.Compiler.Quad.Operand.*;
 import joeq.Compiler.Quad.Operator.*;
+import joeq.Compiler.Quad.RegisterFactory.Register;
 import java.util.*;
 
-class NullChecker implements ExFlow.Analysis
+class NullChecker implements ExFlow.Analysis, CFGInfo.User
 {
     public static class VarSet implements ExFlow.DataflowObject
     {
-        private Set<String> set;
-        public static Set<String> universalSet;
-        public VarSet()
+        private RegisterSet set;
+        public VarSet(RegisterNumbering numbering)
         {
-            set = new TreeSet<String>(universalSet);
+            set = new RegisterSet(numbering);
+            set.fill();
+        }
+        public VarSet(VarSet o)
+        {
+            set = new RegisterSet(o.set);
         }
         
         @Override
-	    public void setToTop() {set = new TreeSet<String>(universalSet); }
+	    public void setToTop() {set.fill(); }
         @Override
-	    public void setToBottom() {set = new TreeSet<String>();}
+	    public void setToBottom() {set.clear();}
         
         @Override
 	    public void meetWith(ExFlow.DataflowObject o)
@@ -28,11 +33,18 @@ class NullChecker implements ExFlow.Analysis
             set.retainAll(a.set);
         }
         
+        @Override
+	    public boolean meetWithChanged(ExFlow.DataflowObject o)
+        {
+            VarSet a = (VarSet)o;
+            return set.retainAll(a.set);
+        }
+        
         @Override
 	    public void copy(ExFlow.DataflowObject o)
         {
             VarSet a = (VarSet)o;
-            set = new TreeSet<String>(a.set);
+            set.copy(a.set);
         }
         
         @Override
@@ -58,54 +70,51 @@ class NullChecker implements ExFlow.Analysis
 
         public void genVar(String v) {set.add(v);}
         public void killVar(String v) {set.remove(v);}
+        public void genVar(Register v) {set.add(v);}
+        public void killVar(Register v) {set.remove(v);}
 
         public boolean contains(String v){return set.contains(v);}
+        public boolean contains(Register v){return set.contains(v);}
     }
 
+    private CFGInfo info;
+    private RegisterNumbering numbering;
     private Map<Quad, VarSet> in;
     private Map<Quad, Map<Quad, VarSet>> out;
     private VarSet entry;
     private VarSet exit;
+    private final boolean remove;
+
+    public NullChecker() { this(null, null, true); }
+
+    /**
+     * @param summaries the null summaries of the methods called, or null
+     * to assume nothing about calls
+     * @param fields the fields that are never null, or null to assume
+     * nothing about loads
+     * @param remove whether to remove the redundant null checks
+     */
+    NullChecker(NullSummaries summaries, NonNullFields fields, boolean remove)
+    {
+        this.remove = remove;
+        transferfn.summaries = summaries;
+        transferfn.fields = fields;
+    }
+
+    public void setCFGInfo(CFGInfo info) { this.info = info; }
 
     @Override
 	public void preprocess(ControlFlowGraph cfg)
     {
-        QuadIterator qit = new QuadIterator(cfg);
-        int max = 0;
-        while (qit.hasNext())
-	    {
-            int x = qit.next().getID();
-            if (x > max) max = x;
-	    }
-        max += 1;
-
-        Set<String> s = new TreeSet<String>();
-        VarSet.universalSet = s;
+        info = CFGInfo.get(cfg, info);
+        numbering = info.getRegisterNumbering();
 
         in = new HashMap<Quad, VarSet>();
         out = new HashMap<Quad, Map<Quad, VarSet>>();
-        entry = new VarSet();
-        exit = new VarSet();
-        qit = new QuadIterator(cfg);
-	    
-        int numargs = cfg.getMethod().getParamTypes().length;
-        for (int i =0; i < numargs; i++)
-	    {
-            s.add("R"+i);
-	    }
-	    
-        while (qit.hasNext())
-	    {
-            Quad q = qit.next();
-            for (RegisterOperand def : q.getDefinedRegisters()) {
-                s.add(def.getRegister().toString());
-            }
-            for (RegisterOperand use : q.getUsedRegisters()) {
-                s.add(use.getRegister().toString());
-            }
-	    }
+        entry = newTempVar();
+        exit = newTempVar();
 
-        qit = new QuadIterator(cfg);
+        QuadIterator qit = new QuadIterator(cfg);
         while (qit.hasNext())
 	    {
             Quad q = qit.next();
@@ -121,22 +130,40 @@ class NullChecker implements ExFlow.Analysis
 		    }
 	    }
         entry.setToBottom();
+        // the receiver of an instance method is never null
+        if(!cfg.getMethod().isStatic())
+            entry.genVar("R0");
         exit.setToTop();
 	    
+        // the first quad the taken edge of each reference compare leads to
+        transferfn.targets = new HashMap<Quad, Quad>();
+        for(qit = new QuadIterator(cfg); qit.hasNext();)
+	    {
+            Quad q = qit.next();
+            if(q.getOperator() instanceof Operator.IntIfCmp.IFCMP_A)
+                transferfn.targets.put(q, QuadGraph.firstQuad(Operator.IntIfCmp.getTarget(q).getTarget()));
+	    }
 
-        transferfn.preval = new VarSet();
+        // the quads an exception edge leads to
+        transferfn.handlers = new HashSet<Quad>();
+        for(ExceptionHandler h : cfg.getExceptionHandlers())
+            transferfn.handlers.add(QuadGraph.firstQuad(h.getEntry()));
+
+        transferfn.preval = newTempVar();
     }
 
     @Override
 	public void postprocess(ControlFlowGraph cfg)
     {
+        if(!remove)
+            return;
         SortedSet<Integer> redundantChecks = new TreeSet<Integer>();
         for(QuadIterator qit = new QuadIterator(cfg); qit.hasNext();)
 	    {
             Quad q = qit.next();
             if(q.getOperator() instanceof Operator.NullCheck)
 		    {
-                if(getAllIn(q).equals(getAllOut(q)))
+                if(isRedundant(q))
 			    {
                     qit.remove();
 			    }
@@ -144,6 +171,19 @@ class NullChecker implements ExFlow.Analysis
 	    }
     }
 	
+    /**
+     * @return true if the value a null check tests is known to be
+     * non-null before it: a checked register, or a constant other than
+     * null. A check of the null constant always throws and stays.
+     */
+    private boolean isRedundant(Quad q)
+    {
+        Operand src = Operator.NullCheck.getSrc(q);
+        if(src instanceof RegisterOperand)
+            return in.get(q).contains(((RegisterOperand)src).getRegister());
+        return src instanceof AConstOperand && ((AConstOperand)src).getValue() != null;
+    }
+
     @Override
 	public boolean isForward() { return true; }
 
@@ -207,6 +247,24 @@ class NullChecker implements ExFlow.Analysis
         return result;
     }
 
+    @Override
+	public ExFlow.DataflowObject peekEntry() { return entry; }
+
+    @Override
+	public ExFlow.DataflowObject peekExit() { return exit; }
+
+    @Override
+	public ExFlow.DataflowObject peekIn(Quad q, Quad pred)
+    {
+        throw new UnsupportedOperationException("In is always unified");
+    }
+
+    @Override
+	public ExFlow.DataflowObject peekOut(Quad q, Quad succ)
+    {
+        return out.get(q).get(succ);
+    }
+
     @Override
 	public void setIn(Quad q, Quad pred, ExFlow.DataflowObject value)
     {
@@ -235,7 +293,7 @@ class NullChecker implements ExFlow.Analysis
     public void setAllIn(Quad q, ExFlow.DataflowObject value)
     {
         assert(in.containsKey(q));
-        in.put(q, (VarSet)value);
+        in.get(q).copy(value);
     }
 
     public void setAllOut(Quad q, ExFlow.DataflowObject value)
@@ -257,53 +315,174 @@ class NullChecker implements ExFlow.Analysis
     }
 
     @Override
-	public VarSet newTempVar() { return new VarSet(); }
+	public VarSet newTempVar() { return new VarSet(numbering); }
 
     private TransferFunction transferfn = new TransferFunction();
 
     @Override
 	public void processQuad(Quad q) {
-        transferfn.preval.copy(getAllIn(q));
+        transferfn.preval.copy(in.get(q));
         transferfn.postval = new HashMap<Quad, VarSet>(out.get(q));
         transferfn.visitQuad(q);
         for(Quad k : transferfn.postval.keySet())
             setOut(q, k, transferfn.postval.get(k));
     }
 
+    @Override
+	public boolean processQuadChanged(Quad q) {
+        transferfn.preval.copy(in.get(q));
+        transferfn.postval = new HashMap<Quad, VarSet>(out.get(q));
+        transferfn.visitQuad(q);
+        boolean changed = false;
+        for(Quad k : transferfn.postval.keySet())
+            if(out.get(q).get(k).meetWithChanged(transferfn.postval.get(k)))
+                changed = true;
+        return changed;
+    }
+
     public static class TransferFunction extends QuadVisitor.EmptyVisitor
     {
 	    
         VarSet preval;
         Map<Quad, VarSet> postval;
+        /** the first quad of the taken edge of each reference compare */
+        Map<Quad, Quad> targets;
+        /** the first quads of the exception handlers */
+        Set<Quad> handlers;
+        NullSummaries summaries;
+        NonNullFields fields;
         @Override
 	    public void visitQuad(Quad q)
         {
-            VarSet nval = new VarSet();
-            nval.copy(preval);
+            VarSet nval = new VarSet(preval);
 
             if(q.getOperator() instanceof Operator.Move)
             {
 		    
                 //object move semantics
-                boolean src_null_checked = true;
+                boolean src_null_checked = !isNull(Operator.Move.getSrc(q));
                 for (RegisterOperand use : q.getUsedRegisters())
-                    if(!preval.contains(use.getRegister().toString()))
+                    if(!preval.contains(use.getRegister()))
                         src_null_checked = false;
                 for (RegisterOperand def : q.getDefinedRegisters())
                     if(src_null_checked)
-                        nval.genVar(def.getRegister().toString());
+                        nval.genVar(def.getRegister());
+                    else
+                        nval.killVar(def.getRegister());
 		    
             }
             else
             {
                 for (RegisterOperand def : q.getDefinedRegisters())
-                    nval.killVar(def.getRegister().toString());
+                    nval.killVar(def.getRegister());
                 for (RegisterOperand use : q.getUsedRegisters())
                     if(q.getOperator() instanceof Operator.NullCheck)
-                        nval.genVar(use.getRegister().toString());
+                        nval.genVar(use.getRegister());
+
+                // fresh objects are never null, and a cast keeps a
+                // checked value checked
+                if(q.getOperator() instanceof Operator.New
+                   || q.getOperator() instanceof Operator.NewArray)
+                    for (RegisterOperand def : q.getDefinedRegisters())
+                        nval.genVar(def.getRegister());
+                if(q.getOperator() instanceof Operator.CheckCast
+                   && Operator.CheckCast.getSrc(q) instanceof RegisterOperand
+                   && preval.contains(((RegisterOperand)Operator.CheckCast.getSrc(q)).getRegister()))
+                    nval.genVar(Operator.CheckCast.getDest(q).getRegister());
+                if(fields != null && fields.loadsNonNull(q))
+                    for (RegisterOperand def : q.getDefinedRegisters())
+                        nval.genVar(def.getRegister());
             }
             for(Quad k : postval.keySet())
                 postval.put(k, nval);
+
+            if(q.getOperator() instanceof Operator.IntIfCmp.IFCMP_A)
+                visitReferenceCompare(q, nval);
+            if(summaries != null && q.getOperator() instanceof Operator.Invoke)
+                visitCall(q, nval);
+        }
+
+        /**
+         * Add the facts the summary of the called method establishes when
+         * the call returns normally: a result that is never null, and
+         * arguments the callee has checked. The exception edges get none.
+         */
+        private void visitCall(Quad q, VarSet nval)
+        {
+            VarSet normal = new VarSet(nval);
+            RegisterOperand dest = Operator.Invoke.getDest(q);
+            if(dest != null && summaries.returnsNonNull(q))
+                normal.genVar(dest.getRegister());
+            ParamListOperand args = Operator.Invoke.getParamList(q);
+            for(int i = 0; i < args.length(); i++)
+            {
+                Register arg = args.get(i).getRegister();
+                if(summaries.checksArgument(q, i)
+                   && (dest == null || dest.getRegister() != arg))
+                    normal.genVar(arg);
+            }
+            for(Quad k : postval.keySet())
+                if(!handlers.contains(k))
+                    postval.put(k, normal);
+        }
+
+        /**
+         * Add the facts a reference compare establishes on each of its
+         * edges: a register compared unequal to null is non-null, and a
+         * register compared equal to a checked one is as good as checked.
+         */
+        private void visitReferenceCompare(Quad q, VarSet nval)
+        {
+            Quad taken = targets.get(q);
+            Quad notTaken = null;
+            for(Quad k : postval.keySet())
+                if(k != taken)
+                    notTaken = k;
+            if(!postval.containsKey(taken) || notTaken == null)
+                return;
+
+            byte cond = Operator.IntIfCmp.getCond(q).getCondition();
+            Quad equal, unequal;
+            if(cond == joeq.Compiler.BytecodeAnalysis.BytecodeVisitor.CMP_EQ)
+            {
+                equal = taken;
+                unequal = notTaken;
+            }
+            else if(cond == joeq.Compiler.BytecodeAnalysis.BytecodeVisitor.CMP_NE)
+            {
+                equal = notTaken;
+                unequal = taken;
+            }
+            else
+                return;
+
+            Operand a = Operator.IntIfCmp.getSrc1(q);
+            Operand b = Operator.IntIfCmp.getSrc2(q);
+            if(a instanceof RegisterOperand && isNull(b))
+                postval.put(unequal, with(nval, ((RegisterOperand)a).getRegister()));
+            else if(b instanceof RegisterOperand && isNull(a))
+                postval.put(unequal, with(nval, ((RegisterOperand)b).getRegister()));
+            else if(a instanceof RegisterOperand && b instanceof RegisterOperand)
+            {
+                Register ra = ((RegisterOperand)a).getRegister();
+                Register rb = ((RegisterOperand)b).getRegister();
+                if(preval.contains(ra) && !preval.contains(rb))
+                    postval.put(equal, with(nval, rb));
+                else if(preval.contains(rb) && !preval.contains(ra))
+                    postval.put(equal, with(nval, ra));
+            }
+        }
+
+        private static boolean isNull(Operand o)
+        {
+            return o instanceof AConstOperand && ((AConstOperand)o).getValue() == null;
+        }
+
+        private static VarSet with(VarSet val, Register r)
+        {
+            VarSet result = new VarSet(val);
+            result.genVar(r);
+            return result;
         }
     }
 }
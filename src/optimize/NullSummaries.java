@@ -0,0 +1,296 @@
+package optimize;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import joeq.Class.*;
+import joeq.Compiler.Quad.*;
+import joeq.Compiler.Quad.Operand.AConstOperand;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+
+/**
+ * Null summaries of the methods of a set of classes: whether a method
+ * returns only non-null references, and which reference parameters it
+ * has null checked whenever it returns normally. {@link NullChecker}
+ * uses them at the call sites whose callee is statically bound (static
+ * and special invocations, final and private methods) and in the set.
+ * <p>
+ * The summaries are solved over the call graph of those call sites,
+ * one strongly connected component at a time, callees first. Within a
+ * component they start optimistic and the members are analyzed until
+ * nothing changes; components whose callees are all solved run in
+ * parallel.
+ */
+public class NullSummaries {
+
+    /** the summarized methods, by index */
+    private final ControlFlowGraph[] cfgs;
+    private final Map<jq_Method, Integer> indices = new HashMap<jq_Method, Integer>();
+
+    /** the indices of the summarized callees of each method */
+    private final int[][] callees;
+
+    /** whether each method returns only non-null references */
+    private final boolean[] returnsNonNull;
+
+    /** whether each method has checked each of its parameters when it
+     * returns normally, by parameter index */
+    private final boolean[][] checksParam;
+
+    /**
+     * Build the call graph of the methods of the given classes and solve
+     * their summaries.
+     * @param classes the classes whose methods to summarize
+     * @param parallelism the number of components solved at the same
+     * time; 1 solves everything on the calling thread
+     */
+    public NullSummaries(jq_Class[] classes, int parallelism) {
+        List<ControlFlowGraph> list = ParallelDriver.getCFGs(classes);
+        int n = list.size();
+        cfgs = list.toArray(new ControlFlowGraph[n]);
+        for (int i = 0; i < n; i++)
+            indices.put(cfgs[i].getMethod(), i);
+
+        callees = new int[n][];
+        returnsNonNull = new boolean[n];
+        checksParam = new boolean[n][];
+        for (int i = 0; i < n; i++) {
+            Set<Integer> targets = new TreeSet<Integer>();
+            for (QuadIterator qit = new QuadIterator(cfgs[i]); qit.hasNext(); ) {
+                Integer target = getTarget(qit.next());
+                if (target != null)
+                    targets.add(target);
+            }
+            callees[i] = new int[targets.size()];
+            int k = 0;
+            for (int target : targets)
+                callees[i][k++] = target;
+            returnsNonNull[i] = true;
+            checksParam[i] = new boolean[cfgs[i].getMethod().getParamTypes().length];
+            Arrays.fill(checksParam[i], true);
+        }
+        solve(parallelism);
+    }
+
+    /**
+     * @param q a quad
+     * @return the index of the summarized method a call always invokes,
+     * or null if the quad is not such a call
+     */
+    private Integer getTarget(Quad q) {
+        Operator op = q.getOperator();
+        if (!(op instanceof Operator.Invoke))
+            return null;
+        // only the summarized methods are sure to be loaded
+        jq_Method m = Operator.Invoke.getMethod(q).getMethod();
+        Integer i = indices.get(m);
+        if (i == null)
+            return null;
+        if (op instanceof Operator.Invoke.InvokeStatic)
+            return i;
+        if (op instanceof Operator.Invoke.InvokeVirtual
+            && (m.isFinal() || m.isPrivate() || m.getDeclaringClass().isFinal()))
+            return i;
+        return null;
+    }
+
+    /**
+     * @param call a call quad
+     * @return true if the call's result is never null
+     */
+    public boolean returnsNonNull(Quad call) {
+        Integer i = getTarget(call);
+        return i != null && returnsNonNull[i];
+    }
+
+    /**
+     * @param call a call quad
+     * @param param the index of an argument of the call
+     * @return true if the argument is never null when the call returns
+     * normally
+     */
+    public boolean checksArgument(Quad call, int param) {
+        Integer i = getTarget(call);
+        return i != null && checksParam[i][param];
+    }
+
+    /**
+     * Solve the components of the call graph, callees first.
+     */
+    private void solve(int parallelism) {
+        List<List<int[]>> levels = components();
+        if (parallelism <= 1) {
+            for (List<int[]> level : levels)
+                for (int[] component : level)
+                    solve(component);
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (List<int[]> level : levels) {
+                List<Future<?>> tasks = new ArrayList<Future<?>>();
+                for (final int[] component : level)
+                    tasks.add(pool.submit(new Runnable() {
+                        public void run() { solve(component); }
+                    }));
+                for (Future<?> task : tasks)
+                    task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Find the strongly connected components of the call graph (Tarjan)
+     * and group them by height: a component's callees are all in lower
+     * levels.
+     * @return the components, by level
+     */
+    private List<List<int[]>> components() {
+        int n = cfgs.length;
+        int[] number = new int[n], low = new int[n], component = new int[n];
+        Arrays.fill(number, -1);
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n], callStack = new int[n], edge = new int[n];
+        int sp = 0, next = 0;
+        List<int[]> found = new ArrayList<int[]>();
+        List<Integer> heights = new ArrayList<Integer>();
+        for (int root = 0; root < n; root++) {
+            if (number[root] >= 0)
+                continue;
+            int csp = 0;
+            callStack[csp++] = root;
+            number[root] = low[root] = next++;
+            stack[sp++] = root;
+            onStack[root] = true;
+            edge[root] = 0;
+            while (csp > 0) {
+                int v = callStack[csp - 1];
+                if (edge[v] < callees[v].length) {
+                    int w = callees[v][edge[v]++];
+                    if (number[w] < 0) {
+                        number[w] = low[w] = next++;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        edge[w] = 0;
+                        callStack[csp++] = w;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], number[w]);
+                    }
+                    continue;
+                }
+                csp--;
+                if (csp > 0)
+                    low[callStack[csp - 1]] = Math.min(low[callStack[csp - 1]], low[v]);
+                if (low[v] != number[v])
+                    continue;
+                // v is the root of a component; its callees outside it
+                // are all in components found before
+                int start = sp;
+                do {
+                    start--;
+                } while (stack[start] != v);
+                int[] members = Arrays.copyOfRange(stack, start, sp);
+                int height = 0;
+                for (int m : members) {
+                    onStack[m] = false;
+                    component[m] = found.size();
+                }
+                for (int m : members)
+                    for (int w : callees[m])
+                        if (component[w] != found.size())
+                            height = Math.max(height, heights.get(component[w]) + 1);
+                sp = start;
+                found.add(members);
+                heights.add(height);
+            }
+        }
+
+        List<List<int[]>> levels = new ArrayList<List<int[]>>();
+        for (int c = 0; c < found.size(); c++) {
+            while (levels.size() <= heights.get(c))
+                levels.add(new ArrayList<int[]>());
+            levels.get(heights.get(c)).add(found.get(c));
+        }
+        return levels;
+    }
+
+    /**
+     * Analyze the members of a component until their summaries stop
+     * changing. The summaries only ever go from true to false.
+     */
+    private void solve(int[] component) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int m : component)
+                changed |= summarize(m);
+        }
+    }
+
+    /**
+     * Recompute the summary of one method from the null checks that hold
+     * at its returns.
+     * @return true if the summary changed
+     */
+    private boolean summarize(int m) {
+        ControlFlowGraph cfg = cfgs[m];
+        NullChecker checker = new NullChecker(this, null, false);
+        ExFlow.Solver solver = new ExSolver();
+        solver.registerAnalysis(checker);
+        solver.visitCFG(cfg);
+
+        // the register of each parameter, or null if the parameter is
+        // not a reference or is overwritten; parameter i is in Ri, a long
+        // or double taking one register like any other parameter
+        jq_Type[] params = cfg.getMethod().getParamTypes();
+        String[] names = new String[params.length];
+        Set<String> defined = new HashSet<String>();
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); )
+            for (RegisterOperand def : qit.next().getDefinedRegisters())
+                defined.add(def.getRegister().toString());
+        for (int i = 0; i < params.length; i++) {
+            String name = "R" + i;
+            if (params[i].isReferenceType() && !defined.contains(name))
+                names[i] = name;
+        }
+
+        boolean nonNull = true;
+        boolean[] checked = new boolean[params.length];
+        for (int i = 0; i < params.length; i++)
+            checked[i] = names[i] != null;
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            if (!(q.getOperator() instanceof Operator.Return)
+                || q.getOperator() instanceof Operator.Return.THROW_A)
+                continue;
+            NullChecker.VarSet in = (NullChecker.VarSet)checker.getAllIn(q);
+            if (q.getOperator() instanceof Operator.Return.RETURN_A) {
+                Operand src = Operator.Return.getSrc(q);
+                if (src instanceof RegisterOperand)
+                    nonNull &= in.contains(((RegisterOperand)src).getRegister());
+                else
+                    nonNull &= !(src instanceof AConstOperand)
+                        || ((AConstOperand)src).getValue() != null;
+            } else {
+                nonNull = false;
+            }
+            for (int i = 0; i < params.length; i++)
+                checked[i] &= names[i] != null && in.contains(names[i]);
+        }
+
+        boolean changed = nonNull != returnsNonNull[m]
+            || !Arrays.equals(checked, checksParam[m]);
+        returnsNonNull[m] = nonNull;
+        checksParam[m] = checked;
+        return changed;
+    }
+}
@@ -2,7 +2,12 @@ package optimize;
 
 import joeq.Main.Helper;
 import joeq.Class.*;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import joeq.Compiler.Quad.ControlFlowGraphVisitor;
+import joeq.Compiler.Quad.Quad;
 
 public class Optimize {
 	
@@ -11,38 +16,130 @@ public class Optimize {
      */
     public static void optimize(List<String> optimizeFiles)
     {
-        ExFlow.Solver solver = new ExSolver();
+        optimize(optimizeFiles, ParallelDriver.defaultParallelism());
+    }
 
+    /*
+     * parallelism is the number of methods that are optimized at the same
+     * time; every method gets its own solver and analyses. Constants
+     * are folded in, and branches on them pruned, by ConstantFolder
+     * first; the property optimize.constprop selects how they are found:
+     * conditional (ConditionalConstantProp, the default), plain
+     * (ConstantProp) or false (no folding). Partial redundancy
+     * elimination (LazyCodeMotion) runs next unless the system property
+     * optimize.pre is false. The property
+     * optimize.nullcheck selects how null checks are removed: dense
+     * (NullChecker, the default), sparse (SparseNullChecker), dominator
+     * (DominatorNullChecker alone) or tiered (DominatorNullChecker, then
+     * NullChecker for the rest). If the property optimize.interprocedural
+     * is true, NullChecker also uses the NullSummaries of the methods
+     * being optimized at their calls. The loads of NonNullFields count as
+     * checked unless the property optimize.fields is false, and
+     * NullCheckHoister moves checks out of loops first unless the
+     * property optimize.hoist is false. If the property
+     * optimize.implicit is true, the remaining checks that could be folded
+     * into the dereference right after them are found by
+     * ImplicitNullChecks and recorded in getFoldableNullChecks; they stay
+     * in the code
+     */
+    public static void optimize(List<String> optimizeFiles, int parallelism)
+    {
+        foldableNullChecks.clear();
         jq_Class[] classes = new jq_Class[optimizeFiles.size()];
         for(int i = 0; i < optimizeFiles.size(); i++)
             classes[i] = (jq_Class)Helper.load(optimizeFiles.get(i));
 
-        AnticipatedExpressions anticipatedExpressions = new AnticipatedExpressions();
-        AvailableExpressions availableExpressions = new AvailableExpressions();
-        PostponableExpressions postponableExpressions = new PostponableExpressions();
-        NullChecker nullChecker = new NullChecker();
+        final NullSummaries summaries = Boolean.getBoolean("optimize.interprocedural")
+            ? new NullSummaries(classes, parallelism) : null;
+        final NonNullFields fields = Boolean.parseBoolean(System.getProperty("optimize.fields", "true"))
+            ? new NonNullFields(classes, summaries) : null;
 
-        for(int i = 0; i < classes.length; i++)
-	    {
-            /*
-            solver.registerAnalysis(anticipatedExpressions);
-            System.out.println("Running anticipation solver");
-            Helper.runPass(classes[i], solver);
+        ParallelDriver driver = new ParallelDriver(parallelism);
+        driver.run(classes, new ParallelDriver.PassFactory() {
+            public ControlFlowGraphVisitor newPass() {
+                PassManager passManager = new PassManager();
+                String constprop = System.getProperty("optimize.constprop", "conditional");
+                if (constprop.equals("plain")) {
+                    ConstantProp constants = new ConstantProp(false);
+                    passManager.addPass(new PassManager.SolverPass("constprop",
+                        newFlowSolver(), constants));
+                    passManager.addPass(new PassManager.VisitorPass("fold",
+                        new ConstantFolder(constants), "constprop"));
+                } else if (!constprop.equals("false")) {
+                    ConditionalConstantProp constants = new ConditionalConstantProp(false);
+                    passManager.addPass(new PassManager.SolverPass("constprop",
+                        newSolver(), constants));
+                    passManager.addPass(new PassManager.VisitorPass("fold",
+                        new ConstantFolder(constants), "constprop"));
+                }
+                if (Boolean.parseBoolean(System.getProperty("optimize.pre", "true"))) {
+                    AnticipatedExpressions anticipated = new AnticipatedExpressions();
+                    AvailableExpressions available = new AvailableExpressions(anticipated);
+                    PostponableExpressions postponable = new PostponableExpressions(available);
+                    UsedExpressions used = new UsedExpressions(postponable);
+                    passManager.addPass(new PassManager.SolverPass("anticipated",
+                        newSolver(), anticipated));
+                    passManager.addPass(new PassManager.SolverPass("available",
+                        newSolver(), available, "anticipated"));
+                    passManager.addPass(new PassManager.SolverPass("postponable",
+                        newSolver(), postponable, "available"));
+                    passManager.addPass(new PassManager.SolverPass("used",
+                        newSolver(), used, "postponable"));
+                    passManager.addPass(new PassManager.VisitorPass("pre",
+                        new LazyCodeMotion(postponable, used), "used"));
+                }
+                String nullcheck = System.getProperty("optimize.nullcheck", "dense");
+                if (Boolean.parseBoolean(System.getProperty("optimize.hoist", "true")))
+                    passManager.addPass(new PassManager.VisitorPass("hoist-nullcheck",
+                        new NullCheckHoister()));
+                if (nullcheck.equals("dominator") || nullcheck.equals("tiered"))
+                    passManager.addPass(new PassManager.VisitorPass("dominator-nullcheck",
+                        new DominatorNullChecker()));
+                if (nullcheck.equals("sparse"))
+                    passManager.addPass(new PassManager.VisitorPass("nullcheck",
+                        new SparseNullChecker()));
+                else if (!nullcheck.equals("dominator"))
+                    passManager.addPass(new PassManager.SolverPass("nullcheck",
+                        newSolver(), new NullChecker(summaries, fields, true)));
+                if (Boolean.getBoolean("optimize.implicit"))
+                    passManager.addPass(new PassManager.VisitorPass("implicit-nullcheck",
+                        new ImplicitNullChecks(foldableNullChecks)));
+                return passManager;
+            }
+        });
+    }
 
-            solver.registerAnalysis(availableExpressions);
-            availableExpressions.setAnticipatedExpressions(anticipatedExpressions.getAnticipatedExpressions());
-	
-            System.out.println("Running availability solver");	
-            Helper.runPass(classes[i], solver);
+    /*
+     * the dereferences the null checks left by the last optimize run
+     * could be folded into, with those checks
+     */
+    public static Map<Quad, Quad> getFoldableNullChecks()
+    {
+        return Collections.unmodifiableMap(foldableNullChecks);
+    }
 
-            solver.registerAnalysis(postponableExpressions);
-            postponableExpressions.setEarliestExpressions(availableExpressions.getEarliestExpressions());
-	
-            System.out.println("Running postponability solver");	
-            Helper.runPass(classes[i], solver);
-            */
-            solver.registerAnalysis(nullChecker);
-            Helper.runPass(classes[i], solver);
-	    }
+    private static final Map<Quad, Quad> foldableNullChecks = new ConcurrentHashMap<Quad, Quad>();
+
+    /*
+     * a new solver for one pass, instrumented if metrics are enabled
+     */
+    private static ExFlow.Solver newSolver()
+    {
+        ExFlow.Solver solver = new ExSolver();
+        if (MetricsCollector.isEnabled())
+            solver = new InstrumentedSolver(solver, MetricsCollector.getDefault());
+        return solver;
+    }
+
+    /*
+     * a new solver for one pass of a Flow analysis, instrumented if
+     * metrics are enabled
+     */
+    private static Flow.Solver newFlowSolver()
+    {
+        Flow.Solver solver = new BlockSolver();
+        if (MetricsCollector.isEnabled())
+            solver = new InstrumentedSolver(solver, MetricsCollector.getDefault());
+        return solver;
     }
 }
@@ -0,0 +1,166 @@
+package optimize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import joeq.Class.*;
+import joeq.Compiler.Quad.*;
+
+/**
+ * Runs a pass over every method of a set of classes on a fork-join pool.
+ * Every method gets a fresh pass from a factory, so passes must keep
+ * their state in instance fields. Anything a pass prints is buffered per
+ * method and printed in the order Helper.runPass visits the methods.
+ */
+public class ParallelDriver {
+
+    /** Creates the pass to run on one method.
+     */
+    public static interface PassFactory {
+        /** Create a new pass with its own analysis state.
+         */
+        ControlFlowGraphVisitor newPass();
+    }
+
+    /** the number of methods processed at the same time */
+    private int parallelism;
+
+    /**
+     * Create a driver.
+     * @param parallelism the number of methods processed at the same
+     * time; 1 runs everything on the calling thread
+     */
+    public ParallelDriver(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the parallelism given by the <tt>optimize.parallelism</tt>
+     * system property, or the number of available processors
+     */
+    public static int defaultParallelism() {
+        return Integer.getInteger("optimize.parallelism",
+                                  Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Run a pass over all methods of the given classes.
+     * @param classes the classes whose methods to visit
+     * @param factory creates the pass for each method
+     */
+    public void run(jq_Class[] classes, final PassFactory factory) {
+        final List<ControlFlowGraph> cfgs = getCFGs(classes);
+        if (parallelism <= 1) {
+            for (ControlFlowGraph cfg : cfgs)
+                factory.newPass().visitCFG(cfg);
+            return;
+        }
+
+        // route each task's output into its own buffer
+        PrintStream stdout = System.out;
+        final ThreadOutput router = new ThreadOutput(stdout);
+        final ByteArrayOutputStream[] buffers = new ByteArrayOutputStream[cfgs.size()];
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        System.setOut(new PrintStream(router, true));
+        try {
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            for (int i = 0; i < cfgs.size(); i++) {
+                final ControlFlowGraph cfg = cfgs.get(i);
+                final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                buffers[i] = buffer;
+                tasks.add(pool.submit(new Runnable() {
+                    public void run() {
+                        router.redirect(buffer);
+                        try {
+                            factory.newPass().visitCFG(cfg);
+                        } finally {
+                            router.redirect(null);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> task : tasks)
+                task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+            System.setOut(stdout);
+        }
+
+        // print the output in method order
+        for (ByteArrayOutputStream buffer : buffers)
+            stdout.print(buffer.toString());
+        stdout.flush();
+    }
+
+    /**
+     * Build the CFGs of all methods in the order Helper.runPass visits
+     * them. joeq's code cache and class loader are not thread-safe, so
+     * this also resolves every exception edge once, which prepares the
+     * exception classes before the methods are processed concurrently.
+     * @param classes the classes whose methods to collect; null entries,
+     * classes Helper.load could not load, are skipped
+     * @return the control flow graphs
+     */
+    static List<ControlFlowGraph> getCFGs(jq_Class[] classes) {
+        List<ControlFlowGraph> cfgs = new ArrayList<ControlFlowGraph>();
+        for (jq_Class c : classes) {
+            if (c == null)
+                continue;
+            List<jq_Method> methods = new ArrayList<jq_Method>();
+            methods.addAll(Arrays.asList(c.getDeclaredStaticMethods()));
+            methods.addAll(Arrays.asList(c.getDeclaredInstanceMethods()));
+            for (jq_Method m : methods) {
+                if (m.getBytecode() == null)
+                    continue;
+                ControlFlowGraph cfg = CodeCache.getCode(m);
+                QuadIterator qit = new QuadIterator(cfg);
+                while (qit.hasNext()) {
+                    qit.next();
+                    qit.successors1();
+                    qit.predecessors1();
+                }
+                cfgs.add(cfg);
+            }
+        }
+        return cfgs;
+    }
+
+    /**
+     * Output stream that writes to the buffer of the current task, or
+     * to the original stream outside of tasks.
+     */
+    private static class ThreadOutput extends OutputStream {
+        private final OutputStream fallback;
+        private final ThreadLocal<OutputStream> target = new ThreadLocal<OutputStream>();
+
+        ThreadOutput(OutputStream fallback) { this.fallback = fallback; }
+
+        void redirect(OutputStream out) { target.set(out); }
+
+        private OutputStream current() {
+            OutputStream out = target.get();
+            return out != null ? out : fallback;
+        }
+
+        @Override
+        public void write(int b) throws IOException { current().write(b); }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            current().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException { current().flush(); }
+    }
+}
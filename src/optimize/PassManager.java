@@ -0,0 +1,202 @@
+package optimize;
+
+import java.util.*;
+import joeq.Compiler.Quad.*;
+
+/**
+ * Runs a sequence of passes over a control flow graph. The CFG metadata
+ * is computed once and handed to every pass. When a pass modifies the
+ * CFG, the metadata is recomputed and the results of the passes that ran
+ * before become invalid; a later pass that requires one of them gets it
+ * rerun first, and passes that nobody requires are not rerun.
+ */
+public class PassManager implements ControlFlowGraphVisitor {
+
+    /** A named unit of work on a control flow graph.
+     */
+    public static abstract class Pass {
+        private final String name;
+        private final String[] requires;
+
+        /**
+         * @param name the name other passes refer to this pass by
+         * @param requires the names of the passes whose results this
+         * pass uses
+         */
+        protected Pass(String name, String... requires) {
+            this.name = name;
+            this.requires = requires;
+        }
+
+        public String getName() { return name; }
+
+        /** @return the names of the passes this pass uses */
+        public String[] getRequires() { return requires; }
+
+        /**
+         * @return the names of the passes whose results stay valid when
+         * this pass modifies the CFG; none by default
+         */
+        public Set<String> getPreserved() { return Collections.emptySet(); }
+
+        /**
+         * Run the pass.
+         * @param cfg the control flow graph
+         * @param info the current metadata of the CFG
+         * @return true if the pass modified the CFG
+         */
+        public abstract boolean run(ControlFlowGraph cfg, CFGInfo info);
+    }
+
+    /** Pass that runs a control flow graph visitor. The pass modified
+     * the CFG if the sequence of quads changed, or an operand of one of
+     * them was replaced or given another register in place.
+     */
+    public static class VisitorPass extends Pass {
+        private final ControlFlowGraphVisitor visitor;
+
+        public VisitorPass(String name, ControlFlowGraphVisitor visitor,
+                           String... requires) {
+            super(name, requires);
+            this.visitor = visitor;
+        }
+
+        public boolean run(ControlFlowGraph cfg, CFGInfo info) {
+            if (visitor instanceof CFGInfo.User)
+                ((CFGInfo.User)visitor).setCFGInfo(info);
+            List<Object> before = snapshot(cfg);
+            visitor.visitCFG(cfg);
+            List<Object> after = snapshot(cfg);
+            if (before.size() != after.size())
+                return true;
+            for (int i = 0; i < before.size(); i++)
+                if (before.get(i) != after.get(i))
+                    return true;
+            return false;
+        }
+
+        /**
+         * @return the quads of the CFG in order, each followed by its
+         * operands and the registers it defines and uses, to be compared
+         * by identity
+         */
+        private static List<Object> snapshot(ControlFlowGraph cfg) {
+            List<Object> result = new ArrayList<Object>();
+            for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+                Quad q = qit.next();
+                result.add(q);
+                for (Operand op : q.getAllOperands())
+                    result.add(op);
+                for (Operand.RegisterOperand def : q.getDefinedRegisters())
+                    result.add(def.getRegister());
+                for (Operand.RegisterOperand use : q.getUsedRegisters())
+                    result.add(use.getRegister());
+            }
+            return result;
+        }
+    }
+
+    /** Pass that runs a solver with its registered analysis.
+     */
+    public static class SolverPass extends VisitorPass {
+        private final Object analysis;
+
+        public SolverPass(String name, Flow.Solver solver, Flow.Analysis analysis,
+                          String... requires) {
+            super(name, solver, requires);
+            solver.registerAnalysis(analysis);
+            this.analysis = analysis;
+        }
+
+        public SolverPass(String name, ExFlow.Solver solver, ExFlow.Analysis analysis,
+                          String... requires) {
+            super(name, solver, requires);
+            solver.registerAnalysis(analysis);
+            this.analysis = analysis;
+        }
+
+        /** @return the analysis, to read its results */
+        public Object getAnalysis() { return analysis; }
+
+        public boolean run(ControlFlowGraph cfg, CFGInfo info) {
+            if (analysis instanceof CFGInfo.User)
+                ((CFGInfo.User)analysis).setCFGInfo(info);
+            return super.run(cfg, info);
+        }
+    }
+
+    /** the passes, in the order they run */
+    private final List<Pass> passes = new ArrayList<Pass>();
+
+    /** the passes by name */
+    private final Map<String, Pass> byName = new HashMap<String, Pass>();
+
+    /** the names of the passes whose results are valid for the CFG */
+    private Set<String> valid;
+
+    /** the metadata of the CFG being processed */
+    private CFGInfo info;
+
+    /** the number of passes run for the last CFG, reruns included */
+    private int runs;
+
+    /**
+     * Add a pass to the end of the sequence.
+     * @param pass the pass to add
+     * @return this manager
+     */
+    public PassManager addPass(Pass pass) {
+        for (String required : pass.getRequires())
+            if (!byName.containsKey(required))
+                throw new IllegalArgumentException(pass.getName() + " requires "
+                                                   + required + ", which is not registered");
+        if (byName.put(pass.getName(), pass) != null)
+            throw new IllegalArgumentException("duplicate pass " + pass.getName());
+        passes.add(pass);
+        return this;
+    }
+
+    /**
+     * @param name the name of a registered pass
+     * @return the pass, or null
+     */
+    public Pass getPass(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @return the number of passes run for the last CFG, reruns included
+     */
+    public int getRuns() {
+        return runs;
+    }
+
+    /**
+     * Run all passes over a control flow graph.
+     * @param cfg the control flow graph
+     */
+    public void visitCFG(ControlFlowGraph cfg) {
+        info = new CFGInfo(cfg);
+        valid = new HashSet<String>();
+        runs = 0;
+        for (Pass pass : passes)
+            run(pass, cfg);
+    }
+
+    /**
+     * Run a pass after making sure the results it requires are valid.
+     */
+    private void run(Pass pass, ControlFlowGraph cfg) {
+        for (String required : pass.getRequires())
+            if (!valid.contains(required))
+                run(byName.get(required), cfg);
+        runs++;
+        boolean modified = pass.run(cfg, info);
+        if (modified) {
+            info = new CFGInfo(cfg);
+            valid.retainAll(pass.getPreserved());
+        }
+        if (!modified || pass.getPreserved().contains(pass.getName()))
+            valid.add(pass.getName());
+    }
+}
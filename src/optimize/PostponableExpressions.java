@@ -0,0 +1,76 @@
+package optimize;
+
+import joeq.Compiler.Quad.*;
+
+/**
+ * Postponable expressions: an expression is postponable after a quad if
+ * on every path to it, its earliest placement was passed and it has not
+ * been used since. The latest placement of an expression is before a
+ * quad where it is earliest or postponable, and either the quad uses it
+ * or it cannot be postponed into some successor.
+ * <p>
+ * Forward; Out = (earliest | In) & ~use; meet is intersection; nothing
+ * is postponable at the entry.
+ */
+public class PostponableExpressions extends ExpressionAnalysis {
+
+    private final AvailableExpressions available;
+
+    /** the latest placements, by quad ID */
+    private ExpressionSet[] latest;
+
+    /**
+     * @param available the available expressions, solved for the same
+     * CFG before this analysis runs
+     */
+    public PostponableExpressions(AvailableExpressions available) {
+        this.available = available;
+    }
+
+    public boolean isForward() { return true; }
+
+    protected boolean isUnion() { return false; }
+
+    protected void transfer(Quad q, ExpressionSet val) {
+        val.addAll(available.earliest(q));
+        val.remove(expressions.indexOf(q));
+    }
+
+    /**
+     * Compute latest = (earliest | In) & (use | ~S) for every quad,
+     * where S is the intersection of (earliest | In) over the
+     * successors. Nothing can be postponed into the exit.
+     */
+    public void postprocess(ControlFlowGraph cfg) {
+        latest = new ExpressionSet[info.getQuadIDLimit()];
+        ExpressionSet succs = newTempVar();
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            succs.fill();
+            for (Quad succ : qit.successors1()) {
+                if (succ == null) {
+                    succs.clear();
+                    break;
+                }
+                ExpressionSet s = newTempVar();
+                s.copy(available.earliest(succ));
+                s.addAll(in(succ));
+                succs.retainAll(s);
+            }
+            succs.complement();
+            succs.add(expressions.indexOf(q));
+
+            ExpressionSet l = newTempVar();
+            l.copy(available.earliest(q));
+            l.addAll(in(q));
+            l.retainAll(succs);
+            latest[q.getID()] = l;
+        }
+    }
+
+    /**
+     * @return the expressions whose latest placement is before a quad;
+     * the set belongs to the analysis and must not be modified
+     */
+    public ExpressionSet latest(Quad q) { return latest[q.getID()]; }
+}
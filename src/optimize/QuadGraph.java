@@ -0,0 +1,155 @@
+package optimize;
+
+import java.util.*;
+import joeq.Compiler.Quad.BasicBlock;
+import joeq.Compiler.Quad.ControlFlowGraph;
+import joeq.Compiler.Quad.Quad;
+import joeq.Compiler.Quad.QuadIterator;
+
+/**
+ * Immutable snapshot of the quad-level control flow of a graph. Quads
+ * are numbered in the order a solver visits them, and the predecessors
+ * and successors of each quad are stored as index ranges of two flat
+ * arrays (compressed sparse rows). The entry and exit are represented by
+ * the index {@link #BOUNDARY}.
+ */
+public class QuadGraph {
+
+    /** the neighbor index of the entry and exit */
+    public static final int BOUNDARY = -1;
+
+    /** the quads, in visiting order */
+    private final Quad[] quads;
+
+    /** the neighbors of quad i are neighbors[start[i]] up to
+     * neighbors[start[i+1]] */
+    private final int[] predStart, preds, succStart, succs;
+
+    /** the quads following the entry and preceding the exit */
+    private final int[] entrySuccs, exitPreds;
+
+    /**
+     * Take a snapshot of a control flow graph.
+     * @param cfg the control flow graph
+     * @param forward true to number the quads in the order a forward
+     * solver visits them, false for the order of a backward solver
+     */
+    public QuadGraph(ControlFlowGraph cfg, boolean forward) {
+        List<Quad> order = new ArrayList<Quad>();
+        List<Collection<Quad>> predLists = new ArrayList<Collection<Quad>>();
+        List<Collection<Quad>> succLists = new ArrayList<Collection<Quad>>();
+        QuadIterator qit = new QuadIterator(cfg, forward);
+        while (forward ? qit.hasNext() : qit.hasPrevious()) {
+            order.add(forward ? qit.next() : qit.previous());
+            predLists.add(qit.predecessors1());
+            succLists.add(qit.successors1());
+        }
+
+        int n = order.size();
+        quads = order.toArray(new Quad[n]);
+        Map<Quad, Integer> index = new HashMap<Quad, Integer>();
+        for (int i = 0; i < n; i++)
+            index.put(quads[i], i);
+
+        predStart = new int[n + 1];
+        succStart = new int[n + 1];
+        preds = flatten(predLists, index, predStart);
+        succs = flatten(succLists, index, succStart);
+
+        List<Integer> entry = new ArrayList<Integer>();
+        List<Integer> exit = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            for (int k = predStart[i]; k < predStart[i + 1]; k++)
+                if (preds[k] == BOUNDARY) entry.add(i);
+            for (int k = succStart[i]; k < succStart[i + 1]; k++)
+                if (succs[k] == BOUNDARY) exit.add(i);
+        }
+        entrySuccs = toArray(entry);
+        exitPreds = toArray(exit);
+    }
+
+    /**
+     * Store the neighbor lists as index ranges of one array. A neighbor
+     * the iterator never visits, a quad of an unreachable block that
+     * jumps into reachable code, is left out: no solver ever computes a
+     * value for it.
+     */
+    private static int[] flatten(List<Collection<Quad>> lists,
+                                 Map<Quad, Integer> index, int[] start) {
+        int total = 0;
+        for (Collection<Quad> list : lists)
+            total += list.size();
+        int[] result = new int[total];
+        int k = 0;
+        for (int i = 0; i < lists.size(); i++) {
+            start[i] = k;
+            for (Quad q : lists.get(i)) {
+                if (q == null) {
+                    result[k++] = BOUNDARY;
+                } else {
+                    Integer j = index.get(q);
+                    if (j != null)
+                        result[k++] = j;
+                }
+            }
+        }
+        start[lists.size()] = k;
+        return k == total ? result : Arrays.copyOf(result, k);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = list.get(i);
+        return result;
+    }
+
+    /**
+     * @return the first quad executed on entering a basic block, skipping
+     * empty blocks as {@link QuadIterator} does, or null for the exit
+     */
+    static Quad firstQuad(BasicBlock bb) {
+        while (!bb.isExit()) {
+            if (bb.size() > 0)
+                return bb.getQuad(0);
+            bb = bb.getFallthroughSuccessor();
+        }
+        return null;
+    }
+
+    /** @return the number of quads */
+    public int size() { return quads.length; }
+
+    /** @return the quad with index i */
+    public Quad getQuad(int i) { return quads[i]; }
+
+    /** @return the start of the predecessors of quad i */
+    public int predBegin(int i) { return predStart[i]; }
+
+    /** @return the end (exclusive) of the predecessors of quad i */
+    public int predEnd(int i) { return predStart[i + 1]; }
+
+    /** @return the predecessor at position k, or BOUNDARY for the entry */
+    public int pred(int k) { return preds[k]; }
+
+    /** @return the start of the successors of quad i */
+    public int succBegin(int i) { return succStart[i]; }
+
+    /** @return the end (exclusive) of the successors of quad i */
+    public int succEnd(int i) { return succStart[i + 1]; }
+
+    /** @return the successor at position k, or BOUNDARY for the exit */
+    public int succ(int k) { return succs[k]; }
+
+    /** @return the number of quads following the entry */
+    public int entrySuccCount() { return entrySuccs.length; }
+
+    /** @return the k-th quad following the entry */
+    public int entrySucc(int k) { return entrySuccs[k]; }
+
+    /** @return the number of quads preceding the exit */
+    public int exitPredCount() { return exitPreds.length; }
+
+    /** @return the k-th quad preceding the exit */
+    public int exitPred(int k) { return exitPreds[k]; }
+}
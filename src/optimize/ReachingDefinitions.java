@@ -5,13 +5,14 @@ import joeq.Compiler.Quad.Operand;
 import joeq.Compiler.Quad.ControlFlowGraph;
 import joeq.Compiler.Quad.QuadIterator;
 import joeq.Compiler.Quad.QuadVisitor;
-import java.util.HashSet;
-import java.util.TreeSet;
+import joeq.Compiler.Quad.RegisterFactory.Register;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Class of reaching definitions analysis.
  */
-public class ReachingDefinitions implements Flow.Analysis {
+public class ReachingDefinitions implements Flow.BlockAnalysis, CFGInfo.User {
     /**
      * the arrays of in and out values
      */
@@ -29,46 +30,71 @@ public class ReachingDefinitions implements Flow.Analysis {
      */
     private TransferFunction transferFunction = new TransferFunction();
 
+    /**
+     * the metadata of the control flow graph
+     */
+    private CFGInfo info;
+
+    /**
+     * the numbering of the definitions of the control flow graph
+     */
+    private Definitions definitions;
+
+    /**
+     * whether to print the method name and the results
+     */
+    private final boolean print;
+
+    /**
+     * Create an analysis that prints its results.
+     */
+    public ReachingDefinitions() {
+        this(true);
+    }
+
+    /**
+     * Create an analysis.
+     * @param print false to only compute the results, for passes that
+     * query them
+     */
+    ReachingDefinitions(boolean print) {
+        this.print = print;
+    }
+
+    /**
+     * Use metadata computed by a pass manager.
+     * @param info the metadata of the next control flow graph
+     */
+    public void setCFGInfo(CFGInfo info) {
+        this.info = info;
+    }
+
     /**
      * Performs preprocessing on the control flow graph.
      * @param cfg the control flow graph to preprocess
      */
     public void preprocess(ControlFlowGraph cfg) {
-        System.out.println("Method: " + cfg.getMethod().getName().toString());
-
-        // find the maximum quad ID
-        QuadIterator quadIterator = new QuadIterator(cfg);
-        int maxID = 0;
-        int quadID;
-        while(quadIterator.hasNext()){
-            quadID = quadIterator.next().getID();
-            maxID = (quadID > maxID ? quadID : maxID);
-        }
+        if (print)
+            System.out.println("Method: " + cfg.getMethod().getName().toString());
+
+        // find the maximum quad ID and number the definitions
+        info = CFGInfo.get(cfg, info);
+        int maxID = info.getQuadIDLimit();
+        definitions = new Definitions(cfg, info);
 
         // create the definition set arrays
-        maxID++;
         in = new DefinitionSet[maxID];
         out = new DefinitionSet[maxID];
         // initialize their values
         for(int i=0; i<in.length; i++){
-            in[i] = new DefinitionSet();
-            out[i] = new DefinitionSet();
+            in[i] = new DefinitionSet(definitions);
+            out[i] = new DefinitionSet(definitions);
         }
         // create the entry and exit nodes
-        entry = new DefinitionSet();
-        exit = new DefinitionSet();
+        entry = new DefinitionSet(definitions);
+        exit = new DefinitionSet(definitions);
         // create the transfer function value
         transferFunction.value = (DefinitionSet)newTempVar();
-        // create the universal set out of all the quads that contain
-        // definitions
-        quadIterator = new QuadIterator(cfg);
-        Quad quad;
-        while(quadIterator.hasNext()){
-            quad = quadIterator.next();
-            // if the quad defines something add to the universal set
-            if(quad.getDefinedRegisters().iterator().hasNext())
-                DefinitionSet.allDefinitions.addDefinition(quad);
-        }
     }
 
     /**
@@ -76,6 +102,8 @@ public class ReachingDefinitions implements Flow.Analysis {
      * @param cfg the control flow graph to post process
      */
     public void postprocess(ControlFlowGraph cfg) {
+        if (!print)
+            return;
         System.out.println("entry: " + entry.toString());
         for (int i=1; i<in.length; i++){
             System.out.println(i + " in:  " + in[i].toString());
@@ -84,6 +112,14 @@ public class ReachingDefinitions implements Flow.Analysis {
         System.out.println("exit: " + exit.toString());
     }
 
+    /**
+     * @return the numbering of the definitions of the last control flow
+     * graph
+     */
+    public Definitions getDefinitions() {
+        return definitions;
+    }
+
     /**
      * Reaching definitions is a forward analysis.
      * @return true
@@ -132,6 +168,36 @@ public class ReachingDefinitions implements Flow.Analysis {
         return getNewCopy(out[quad.getID()]);
     }
 
+    /**
+     * @return the entry node, not copied
+     */
+    public Flow.DataflowObject peekEntry() { 
+        return entry;
+    }
+
+    /**
+     * @return the exit node, not copied
+     */
+    public Flow.DataflowObject peekExit() { 
+        return exit;
+    }
+
+    /**
+     * @param quad the quad to return the In value of
+     * @return the In value of the given quad, not copied
+     */
+    public Flow.DataflowObject peekIn(Quad quad) { 
+        return in[quad.getID()];
+    }
+
+    /**
+     * @param quad the quad to return the Out value of
+     * @return the Out value of the given quad, not copied
+     */
+    public Flow.DataflowObject peekOut(Quad quad) { 
+        return out[quad.getID()];
+    }
+
     /**
      * Sets the In value of a given quad
      * @param quad the quad to set the In value of
@@ -170,7 +236,7 @@ public class ReachingDefinitions implements Flow.Analysis {
      * @return a new definition set
      */
     public Flow.DataflowObject newTempVar() { 
-        return new DefinitionSet(); 
+        return new DefinitionSet(definitions); 
     }
 
     /**
@@ -183,31 +249,182 @@ public class ReachingDefinitions implements Flow.Analysis {
         out[quad.getID()].copy(transferFunction.value);
     }
 
+    /**
+     * Process a quad and report whether its Out value changed
+     * @param quad the quad to process
+     * @return true if the Out value changed
+     */
+    public boolean processQuadChanged(Quad quad) {
+        transferFunction.value.copy(in[quad.getID()]);
+        transferFunction.visitQuad(quad);
+        return out[quad.getID()].meetWithChanged(transferFunction.value);
+    }
+
+    /**
+     * Compose the transfer functions of a run of quads into the
+     * definitions that reach its end and the definitions it kills.
+     * @param quads the quads in program order
+     * @return the composed transfer function
+     */
+    public Flow.TransferSummary summarize(List<Quad> quads) {
+        final DefinitionSet gen = new DefinitionSet(definitions);
+        final DefinitionSet killed = new DefinitionSet(definitions);
+        for (Quad quad : quads) {
+            for (Operand.RegisterOperand def : quad.getDefinedRegisters()) {
+                gen.kill(def);
+                killed.or(definitions.getKillMask(def.getRegister()));
+            }
+            if (!quad.getDefinedRegisters().isEmpty())
+                gen.addDefinition(quad);
+        }
+        return new Flow.TransferSummary() {
+            public void apply(Flow.DataflowObject value) {
+                DefinitionSet definitions = (DefinitionSet)value;
+                definitions.andNot(killed.words);
+                definitions.or(gen.words);
+            }
+        };
+    }
+
+
+    /**
+     * The dense numbering of the definitions of a control flow graph.
+     * Definitions are numbered in the order of their quad IDs, and every
+     * register has a mask of the definitions that define it.
+     */
+    public static class Definitions {
+        /**
+         * the quads holding the definitions, by definition number
+         */
+        private final Quad[] quads;
+
+        /**
+         * the definition number of each quad ID, -1 if the quad defines
+         * nothing
+         */
+        private final int[] numbers;
+
+        /**
+         * the numbering of the registers
+         */
+        private final RegisterNumbering registers;
+
+        /**
+         * the definitions of each register, by register index
+         */
+        private final long[][] killMasks;
+
+        /**
+         * Number the definitions of a control flow graph
+         * @param cfg the control flow graph
+         * @param info the metadata of the control flow graph
+         */
+        public Definitions(ControlFlowGraph cfg, CFGInfo info) {
+            registers = info.getRegisterNumbering();
+            // collect the quads that define something, by ID
+            numbers = new int[info.getQuadIDLimit()];
+            Arrays.fill(numbers, -1);
+            QuadIterator quadIterator = new QuadIterator(cfg);
+            int count = 0;
+            while (quadIterator.hasNext()) {
+                Quad quad = quadIterator.next();
+                if (!quad.getDefinedRegisters().isEmpty()) {
+                    numbers[quad.getID()] = 0;
+                    count++;
+                }
+            }
+            quads = new Quad[count];
+            int words = wordCount();
+            killMasks = new long[registers.size()][words];
+            // number them in ID order
+            count = 0;
+            for (int id = 0; id < numbers.length; id++)
+                if (numbers[id] == 0)
+                    numbers[id] = count++;
+            quadIterator = new QuadIterator(cfg);
+            while (quadIterator.hasNext()) {
+                Quad quad = quadIterator.next();
+                int d = numbers[quad.getID()];
+                if (d < 0)
+                    continue;
+                quads[d] = quad;
+                for (Operand.RegisterOperand def : quad.getDefinedRegisters()) {
+                    long[] mask = killMasks[registers.indexOf(def.getRegister())];
+                    mask[d >>> 6] |= 1L << d;
+                }
+            }
+        }
+
+        /**
+         * @return the number of definitions
+         */
+        public int size() {
+            return quads.length;
+        }
+
+        /**
+         * @return the number of words of a definition bit vector
+         */
+        int wordCount() {
+            return (quads.length + 63) >>> 6;
+        }
+
+        /**
+         * @param quad a quad of the control flow graph
+         * @return the quad's definition number, or -1 if it defines
+         * nothing
+         */
+        public int numberOf(Quad quad) {
+            return numbers[quad.getID()];
+        }
+
+        /**
+         * @param d a definition number
+         * @return the quad holding the definition
+         */
+        public Quad getQuad(int d) {
+            return quads[d];
+        }
+
+        /**
+         * @param register a register of the control flow graph
+         * @return the mask of the definitions of the register
+         */
+        long[] getKillMask(Register register) {
+            return killMasks[registers.indexOf(register)];
+        }
+    }
 
     /**
      * The definition set object.
-     * A set of definitions is a set of quads which hold the definitions.
+     * A set of definitions is a bit vector over the definition numbers
+     * of the control flow graph.
      */
     public static class DefinitionSet implements Flow.DataflowObject {
-        public static final DefinitionSet allDefinitions = new DefinitionSet();
+        /**
+         * the numbering of the definitions
+         */
+        private final Definitions numbering;
 
         /**
-         * the set of definitions
+         * the bits of the set, one per definition number
          */
-        private HashSet<Quad> definitions;
+        private final long[] words;
 
         /**
          * Constructor
+         * @param numbering the numbering of the definitions
          */
-        public DefinitionSet() {
-            definitions = new HashSet<Quad>();
+        public DefinitionSet(Definitions numbering) {
+            this.numbering = numbering;
+            words = new long[numbering.wordCount()];
         }
 
         /**
          * Sets the definition set to the top value, which is an empty set
          */
         public void setToTop() {
-            definitions.clear();
+            Arrays.fill(words, 0L);
         }
 
         /**
@@ -215,7 +432,9 @@ public class ReachingDefinitions implements Flow.Analysis {
          * universal set
          */
         public void setToBottom() {
-            copy(allDefinitions);
+            if (words.length == 0) return;
+            Arrays.fill(words, -1L);
+            words[words.length - 1] = -1L >>> (-numbering.size() & 63);
         }
 
         /**
@@ -224,32 +443,44 @@ public class ReachingDefinitions implements Flow.Analysis {
          * @param moreDefinitions the set of definitions to meet with
          */
         public void meetWith(Flow.DataflowObject moreDefinitions) {
-            definitions.addAll(((DefinitionSet)moreDefinitions).definitions);
+            or(((DefinitionSet)moreDefinitions).words);
+        }
+
+        /**
+         * Performs a meet with another definition set and reports whether
+         * this set changed.
+         * @param moreDefinitions the set of definitions to meet with
+         * @return true if definitions were added
+         */
+        public boolean meetWithChanged(Flow.DataflowObject moreDefinitions) {
+            return or(((DefinitionSet)moreDefinitions).words);
         }
 
         /**
-         * Copies another definition set by emptying all existing
-         * definitions and copying the other set's definitions.
+         * Copies another definition set.
          * @param otherDefinitions the definition set to copy
          */
         public void copy(Flow.DataflowObject otherDefinitions) {
-            setToTop();
-            meetWith(otherDefinitions);
+            long[] other = ((DefinitionSet)otherDefinitions).words;
+            System.arraycopy(other, 0, words, 0, words.length);
         }
 
         /**
-         * @return a string representation of the definition set.
+         * @return a string representation of the definition set, the
+         * sorted IDs of the definition quads.
          */
         @Override
         public String toString() {
-            // create a sorted set of the quad IDs
-            TreeSet<Integer> quadIDs = new TreeSet<Integer>();
-            for (Quad def : definitions) {
-                quadIDs.add(def.getID());
+            // definitions are numbered in quad ID order
+            StringBuilder sb = new StringBuilder("[");
+            for (int d = 0; d < numbering.size(); d++) {
+                if ((words[d >>> 6] & (1L << d)) == 0)
+                    continue;
+                if (sb.length() > 1)
+                    sb.append(", ");
+                sb.append(numbering.getQuad(d).getID());
             }
-
-            // return the sorted ID set string
-            return quadIDs.toString();
+            return sb.append("]").toString();
         }
 
         /**
@@ -261,14 +492,14 @@ public class ReachingDefinitions implements Flow.Analysis {
         @Override
         public boolean equals(Object otherDefinitions) {
             if(otherDefinitions instanceof DefinitionSet) {
-                return definitions.equals(((DefinitionSet)otherDefinitions).definitions);
+                return Arrays.equals(words, ((DefinitionSet)otherDefinitions).words);
             }
             return false;
         }
 
         @Override
         public int hashCode() {
-            return 1;
+            return Arrays.hashCode(words);
         }
 
         /**
@@ -276,7 +507,8 @@ public class ReachingDefinitions implements Flow.Analysis {
          * @param quad the quad holding the definition to add
          */
         protected void addDefinition(Quad quad) {
-            definitions.add(quad);
+            int d = numbering.numberOf(quad);
+            words[d >>> 6] |= 1L << d;
         }
 
         /**
@@ -284,19 +516,38 @@ public class ReachingDefinitions implements Flow.Analysis {
          * @param operand the operand to kill definitions with
          */
         protected void kill(Operand.RegisterOperand operand) {
-            // the operand's string
-            String operandString = operand.getRegister().toString();
-            // iterate over the definitions in this set
-            HashSet<Quad> toRemove = new HashSet<Quad>();
-            for (Quad quad : definitions) {
-                // iterate over defined registers in the quad
-                for (Operand.RegisterOperand def : quad.getDefinedRegisters())
-                    // if quad defines the same register, kill it
-                    if(operandString.equals(def.getRegister().toString()))
-                        toRemove.add(quad);
+            andNot(numbering.getKillMask(operand.getRegister()));
+        }
+
+        /**
+         * @return the bits of the set, not copied
+         */
+        long[] getWords() {
+            return words;
+        }
+
+        /**
+         * Adds all definitions of a mask.
+         * @param mask the definitions to add
+         * @return true if definitions were added
+         */
+        boolean or(long[] mask) {
+            long changed = 0;
+            for (int i = 0; i < words.length; i++) {
+                long w = words[i] | mask[i];
+                changed |= w ^ words[i];
+                words[i] = w;
             }
-            // remove killed definitions from the definition set
-            definitions.removeAll(toRemove);
+            return changed != 0;
+        }
+
+        /**
+         * Removes all definitions of a mask.
+         * @param mask the definitions to remove
+         */
+        void andNot(long[] mask) {
+            for (int i = 0; i < words.length; i++)
+                words[i] &= ~mask[i];
         }
     }
 
@@ -1,15 +1,23 @@
 package optimize;
 
-import java.util.Iterator;
 import joeq.Compiler.Quad.ControlFlowGraph;
 import joeq.Compiler.Quad.Quad;
-import joeq.Compiler.Quad.QuadIterator;
 
-public class ReferenceSolver implements Flow.Solver {
+public class ReferenceSolver implements Flow.Solver, InstrumentedSolver.RoundCounter {
 
     /** the solver's quad analyzer */
     private Flow.Analysis analyzer;
 
+    /** the value the In (forward) or Out (backward) of a quad is
+     * computed in */
+    private Flow.DataflowObject scratch;
+
+    /** the quads and their neighbors, in visiting order */
+    private QuadGraph graph;
+
+    /** the number of rounds of the last run */
+    private int rounds;
+
     /**
      * Register a new quad analyzer
      * @param analyzer the analyzer to register
@@ -18,6 +26,13 @@ public class ReferenceSolver implements Flow.Solver {
         this.analyzer = analyzer;
     }
 
+    /**
+     * @return the number of rounds over all quads the last run took
+     */
+    public int getRounds() {
+        return rounds;
+    }
+
     /**
      * Visit a given control flow graph and runs the analyzer on all its
      * quads in the direction specified by the analyzer.
@@ -26,35 +41,33 @@ public class ReferenceSolver implements Flow.Solver {
     public void visitCFG(ControlFlowGraph cfg) {
         // run preprocess
         analyzer.preprocess(cfg);
+        scratch = analyzer.newTempVar();
+        graph = new QuadGraph(cfg, analyzer.isForward());
 
         // initialize the internal node values
-        QuadIterator quadIterator = new QuadIterator(cfg);
-        while (quadIterator.hasNext()) {
-            Quad quad = quadIterator.next();
+        for (int i = 0; i < graph.size(); i++) {
             // get a new value and set it to top
             Flow.DataflowObject topValue = analyzer.newTempVar();
             topValue.setToTop();
             // set the initial value according to analysis direction
             if (analyzer.isForward()) {
-                analyzer.setOut(quad, topValue);
+                analyzer.setOut(graph.getQuad(i), topValue);
             } else {
-                analyzer.setIn(quad, topValue);
+                analyzer.setIn(graph.getQuad(i), topValue);
             }
         }
 
         // iterate over all quads repeatedly as long as there's change in
         // any node's value
         boolean changed = true;
-        boolean nodeChanged;
+        rounds = 0;
         while (changed) {
             // assume there are no more changes in the node values
             changed = false;
-            // get a new quad iterator
-            quadIterator = new QuadIterator(cfg, analyzer.isForward());
-            while (analyzer.isForward() && quadIterator.hasNext()
-                    || !analyzer.isForward() && quadIterator.hasPrevious()) {
-                // process each quad
-                if (processQuad(quadIterator)) {
+            rounds++;
+            // process each quad in visiting order
+            for (int i = 0; i < graph.size(); i++) {
+                if (processQuad(i)) {
                     changed = true;
                 }
             }
@@ -63,9 +76,9 @@ public class ReferenceSolver implements Flow.Solver {
         // depending on the analysis direction, calculate the final value
         // of the entry / exit node
         if (analyzer.isForward()) {
-            calculateExit(cfg);
+            calculateExit();
         } else {
-            calculateEntry(cfg);
+            calculateEntry();
         }
 
         // run postprocess
@@ -75,67 +88,44 @@ public class ReferenceSolver implements Flow.Solver {
     /**
      * Process a single quad and returns true iff the node's value
      * changed.
-     * @param quadIterator the quad iterator pointing at the node to
-     * process
+     * @param i the index of the quad to process
      * @return true if the node's value changed, false otherwise
      */
-    private boolean processQuad(QuadIterator quadIterator) {
-        // get the quad to process
-        Quad quad =
-            analyzer.isForward()
-            ? quadIterator.next() : quadIterator.previous();
-        // get the quad's In and Out
-        Flow.DataflowObject quadIn = analyzer.getIn(quad);
-        Flow.DataflowObject quadOut = analyzer.getOut(quad);
+    private boolean processQuad(int i) {
+        Quad quad = graph.getQuad(i);
         // reset In/Out value and meet with all predecessors/successors
+        scratch.setToTop();
         if (analyzer.isForward()) {
-            quadIn.setToTop();
-            meetAllPredecessors(quadIn, quadIterator);
-            analyzer.setIn(quad, quadIn);
+            meetAllPredecessors(scratch, i);
+            analyzer.setIn(quad, scratch);
         } else {
-            quadOut.setToTop();
-            meetAllSuccessors(quadOut, quadIterator);
-            analyzer.setOut(quad, quadOut);
+            meetAllSuccessors(scratch, i);
+            analyzer.setOut(quad, scratch);
         }
 
         /**///System.out.println("In: " + analyzer.getIn(quad).toString();)
         /**///System.out.println("Out: " + analyzer.getOut(quad).toString());
 
-        // process the quad
-        analyzer.processQuad(quad);
-        /**///System.out.println("In: " + analyzer.getIn(quad).toString());
-        /**///System.out.println("Out: " + analyzer.getOut(quad).toString());
-
-        // check if the node's value changed and return the flag
-        Flow.DataflowObject newValue;
-        if (analyzer.isForward()) {
-            newValue = analyzer.getOut(quad);
-            return !newValue.equals(quadOut);
-        } else {
-            newValue = analyzer.getIn(quad);
-            return !newValue.equals(quadIn);
-        }
+        // process the quad, which reports whether the node's value
+        // changed
+        return analyzer.processQuadChanged(quad);
     }
 
     /**
      * Perform the meet of a dataflow object with all the predecessor
      * dataflow objects.
      * @param quadIn the in object to meet with
-     * @param quadIterator the quad iterator pointing to the quad
+     * @param i the index of the quad
      */
-    private void meetAllPredecessors(Flow.DataflowObject quadIn,
-            QuadIterator quadIterator) {
-        // get all predecessors
-        Iterator<Quad> iterator = quadIterator.predecessors();
+    private void meetAllPredecessors(Flow.DataflowObject quadIn, int i) {
         // meet with all the predecessors' Out dataflow objects
-        Quad quad;
-        while (iterator.hasNext()) {
-            quad = iterator.next();
+        for (int k = graph.predBegin(i); k < graph.predEnd(i); k++) {
+            int pred = graph.pred(k);
             // use the entry value where appropriate
-            if (quad == null) {
-                quadIn.meetWith(analyzer.getEntry());
+            if (pred == QuadGraph.BOUNDARY) {
+                quadIn.meetWith(analyzer.peekEntry());
             } else {
-                quadIn.meetWith(analyzer.getOut(quad));
+                quadIn.meetWith(analyzer.peekOut(graph.getQuad(pred)));
             }
         }
     }
@@ -144,21 +134,17 @@ public class ReferenceSolver implements Flow.Solver {
      * Perform the meet of a dataflow object with all the successor
      * dataflow objects.
      * @param quadOut the in object to meet with
-     * @param quadIterator the quad iterator pointing to the quad
+     * @param i the index of the quad
      */
-    private void meetAllSuccessors(Flow.DataflowObject quadOut,
-            QuadIterator quadIterator) {
-        // get all successors
-        Iterator<Quad> iterator = quadIterator.successors();
+    private void meetAllSuccessors(Flow.DataflowObject quadOut, int i) {
         // meet with all the successors' In dataflow objects
-        Quad quad;
-        while (iterator.hasNext()) {
-            quad = iterator.next();
+        for (int k = graph.succBegin(i); k < graph.succEnd(i); k++) {
+            int succ = graph.succ(k);
             // use the exit value where appropriate
-            if (quad == null) {
-                quadOut.meetWith(analyzer.getExit());
+            if (succ == QuadGraph.BOUNDARY) {
+                quadOut.meetWith(analyzer.peekExit());
             } else {
-                quadOut.meetWith(analyzer.getIn(quad));
+                quadOut.meetWith(analyzer.peekIn(graph.getQuad(succ)));
             }
         }
     }
@@ -166,22 +152,15 @@ public class ReferenceSolver implements Flow.Solver {
     /**
      * Calculate the final value of the exit node, based on the quads that
      * are its predecessors.
-     * @param cfg the control flow graph of the exit node
      */
-    private void calculateExit(ControlFlowGraph cfg) {
+    private void calculateExit() {
         // get a new exit value
         Flow.DataflowObject newExit = analyzer.newTempVar();
         // reset its value
         newExit.setToTop();
         // meet its value with all the Outs of the exit's predecessors
-        QuadIterator quadIterator = new QuadIterator(cfg);
-        while (quadIterator.hasNext()) {
-            Quad quad = quadIterator.next();
-            // check if the quad is the exit's predecessor
-            if (isExitPredecessor(quadIterator)) // meet with its Out value
-            {
-                newExit.meetWith(analyzer.getOut(quad));
-            }
+        for (int k = 0; k < graph.exitPredCount(); k++) {
+            newExit.meetWith(analyzer.peekOut(graph.getQuad(graph.exitPred(k))));
         }
         // set the new exit value
         analyzer.setExit(newExit);
@@ -190,46 +169,17 @@ public class ReferenceSolver implements Flow.Solver {
     /**
      * Calculate the final value of the entry node, based on the quads that
      * are its successors.
-     * @param cfg the control flow graph of the entry node
      */
-    private void calculateEntry(ControlFlowGraph cfg) {
+    private void calculateEntry() {
         // get a new entry value
         Flow.DataflowObject newEntry = analyzer.newTempVar();
         // reset its value
         newEntry.setToTop();
         // meet its value with all the Ins of the entry's successors
-        QuadIterator quadIterator = new QuadIterator(cfg);
-        while (quadIterator.hasNext()) {
-            Quad quad = quadIterator.next();
-            // check if the quad is the entry's successor
-            if (isEntrySuccessor(quadIterator)) // meet with its In value
-            {
-                newEntry.meetWith(analyzer.getIn(quad));
-            }
+        for (int k = 0; k < graph.entrySuccCount(); k++) {
+            newEntry.meetWith(analyzer.peekIn(graph.getQuad(graph.entrySucc(k))));
         }
         // set the new entry value
         analyzer.setEntry(newEntry);
     }
-
-    /**
-     * Determine whether a given quad (pointed by a quad iterator) is a
-     * predecessor of the exit node.
-     * @param quadIterator the quad iterator pointing to the quad
-     * @return true if the quad is the exit's predecessor, false otherwise
-     */
-    private boolean isExitPredecessor(QuadIterator quadIterator) {
-        // exit if a successor is null
-        return quadIterator.successors1().contains(null);
-    }
-
-    /**
-     * Determine whether a given quad (pointed by a quad iterator) is a
-     * successor of the entry node.
-     * @param quadIterator the quad iterator pointing to the quad
-     * @return true if the quad is the entry's successor, false otherwise
-     */
-    private boolean isEntrySuccessor(QuadIterator quadIterator) {
-        // entry if a predecessor is null
-        return quadIterator.predecessors1().contains(null);
-    }
 }
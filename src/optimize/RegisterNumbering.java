@@ -0,0 +1,79 @@
+package optimize;
+
+import java.util.*;
+import joeq.Compiler.Quad.RegisterFactory.Register;
+
+/**
+ * Dense numbering of the registers of a control flow graph: the method
+ * arguments R0..Rn and every register defined or used by a quad.
+ * Registers are numbered in the order of their names, so visiting the
+ * indices in order visits the registers like a sorted set of names.
+ * The numbering of a graph is part of its {@link CFGInfo}.
+ */
+public class RegisterNumbering {
+
+    /** the register names, by index */
+    private String[] names;
+
+    /** the index of each register name */
+    private Map<String, Integer> indices;
+
+    /** the index of each register seen in the CFG */
+    private Map<Register, Integer> registerIndices;
+
+    /**
+     * Number the registers of a control flow graph.
+     * @param numargs the number of method arguments
+     * @param registers the registers the quads define or use
+     */
+    RegisterNumbering(int numargs, List<Register> registers) {
+        // collect the register names; arguments are always there
+        SortedSet<String> s = new TreeSet<String>();
+        for (int i = 0; i < numargs; i++) {
+            s.add("R"+i);
+        }
+        for (Register r : registers) {
+            s.add(r.toString());
+        }
+
+        // number them in name order
+        names = s.toArray(new String[s.size()]);
+        indices = new HashMap<String, Integer>();
+        for (int i = 0; i < names.length; i++) {
+            indices.put(names[i], i);
+        }
+        registerIndices = new HashMap<Register, Integer>();
+        for (Register r : registers) {
+            registerIndices.put(r, indices.get(r.toString()));
+        }
+    }
+
+    /**
+     * @return the number of registers
+     */
+    public int size() { return names.length; }
+
+    /**
+     * @param r a register of the CFG
+     * @return the index of the register, or -1 if it is not numbered
+     */
+    public int indexOf(Register r) {
+        Integer i = registerIndices.get(r);
+        return i != null ? i : indexOf(r.toString());
+    }
+
+    /**
+     * @param name the name of a register
+     * @return the index of the register, or -1 if it is not numbered
+     */
+    public int indexOf(String name) {
+        Integer i = indices.get(name);
+        return i != null ? i : -1;
+    }
+
+    /**
+     * @param i a register index
+     * @return the name of the register
+     */
+    public String getName(int i) { return names[i]; }
+}
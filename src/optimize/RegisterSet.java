@@ -0,0 +1,145 @@
+package optimize;
+
+import java.util.Arrays;
+import joeq.Compiler.Quad.RegisterFactory.Register;
+
+/**
+ * Set of registers of one control flow graph, stored as a bit vector
+ * over a {@link RegisterNumbering}. Intersection, union and copy work a
+ * word at a time and allocate nothing.
+ */
+public class RegisterSet {
+    private final RegisterNumbering numbering;
+    private final long[] words;
+
+    /**
+     * Create an empty set.
+     * @param numbering the numbering of the registers
+     */
+    public RegisterSet(RegisterNumbering numbering) {
+        this.numbering = numbering;
+        this.words = new long[(numbering.size() + 63) >>> 6];
+    }
+
+    /**
+     * Create a copy of another set.
+     * @param o the set to copy
+     */
+    public RegisterSet(RegisterSet o) {
+        this.numbering = o.numbering;
+        this.words = o.words.clone();
+    }
+
+    /** Remove all registers. */
+    public void clear() { Arrays.fill(words, 0L); }
+
+    /** Add all registers of the numbering. */
+    public void fill() {
+        if (words.length == 0) return;
+        Arrays.fill(words, -1L);
+        words[words.length - 1] = -1L >>> (-numbering.size() & 63);
+    }
+
+    public void add(Register r) { add(numbering.indexOf(r)); }
+    public void add(String name) { add(numbering.indexOf(name)); }
+    public void add(int i) { if (i >= 0) words[i >>> 6] |= 1L << i; }
+
+    public void remove(Register r) { remove(numbering.indexOf(r)); }
+    public void remove(String name) { remove(numbering.indexOf(name)); }
+    public void remove(int i) { if (i >= 0) words[i >>> 6] &= ~(1L << i); }
+
+    public boolean contains(Register r) { return contains(numbering.indexOf(r)); }
+    public boolean contains(String name) { return contains(numbering.indexOf(name)); }
+    public boolean contains(int i) { return i >= 0 && (words[i >>> 6] & (1L << i)) != 0; }
+
+    /**
+     * @param from the index to start at
+     * @return the index of the first register of the set at or after
+     * from, or -1 if there is none
+     */
+    public int nextSetBit(int from) {
+        int w = from >>> 6;
+        if (w >= words.length) return -1;
+        long word = words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == words.length) return -1;
+            word = words[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * Keep only the registers that are also in another set.
+     * @return true if this set changed
+     */
+    public boolean retainAll(RegisterSet o) {
+        long changed = 0;
+        for (int i = 0; i < words.length; i++) {
+            long w = words[i] & o.words[i];
+            changed |= w ^ words[i];
+            words[i] = w;
+        }
+        return changed != 0;
+    }
+
+    /**
+     * Add all the registers of another set.
+     * @return true if this set changed
+     */
+    public boolean addAll(RegisterSet o) {
+        long changed = 0;
+        for (int i = 0; i < words.length; i++) {
+            long w = words[i] | o.words[i];
+            changed |= w ^ words[i];
+            words[i] = w;
+        }
+        return changed != 0;
+    }
+
+    /**
+     * Remove all the registers of another set.
+     * @return true if this set changed
+     */
+    public boolean removeAll(RegisterSet o) {
+        long changed = 0;
+        for (int i = 0; i < words.length; i++) {
+            long w = words[i] & ~o.words[i];
+            changed |= w ^ words[i];
+            words[i] = w;
+        }
+        return changed != 0;
+    }
+
+    /** Replace the contents with those of another set. */
+    public void copy(RegisterSet o) {
+        System.arraycopy(o.words, 0, words, 0, words.length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof RegisterSet) {
+            return Arrays.equals(words, ((RegisterSet)o).words);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    /**
+     * @return the register names, in the same format as a sorted set of
+     * names
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < numbering.size(); i++) {
+            if (!contains(i)) continue;
+            if (sb.length() > 1) sb.append(", ");
+            sb.append(numbering.getName(i));
+        }
+        return sb.append("]").toString();
+    }
+}
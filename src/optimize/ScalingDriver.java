@@ -0,0 +1,138 @@
+package optimize;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import joeq.Class.*;
+import joeq.Compiler.Quad.*;
+import joeq.Main.Helper;
+
+/**
+ * Runs every solver and analysis pair over a series of synthetic methods
+ * of growing size, and reports how time and allocation grow with the
+ * number of quads. The exponent column is the slope between neighboring
+ * sizes on a log-log scale: 1 means linear growth, and values well above
+ * 1 point at superlinear behavior.
+ *
+ * Usage: java optimize.ScalingDriver [--sizes n,n,...] [--dir dir]
+ *        [--warmup n] [--iterations n] [--filter text]
+ *        [generator options]
+ *
+ * The generator options are those of SyntheticGenerator; --statements is
+ * replaced by each of the sizes. The sources are compiled with the
+ * running JDK's compiler for the class file version given by the
+ * <tt>optimize.synthetic.target</tt> system property (default 1.5).
+ */
+public class ScalingDriver {
+
+    public static void main(String[] args) throws IOException {
+        SyntheticGenerator generator = new SyntheticGenerator();
+        int[] sizes = { 100, 200, 400, 800, 1600 };
+        File dir = null;
+        int warmup = 2, iterations = 5;
+        String filter = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--sizes")) {
+                String[] s = args[++i].split(",");
+                sizes = new int[s.length];
+                for (int j = 0; j < s.length; j++)
+                    sizes[j] = Integer.parseInt(s[j].trim());
+            } else if (args[i].equals("--dir"))
+                dir = new File(args[++i]);
+            else if (args[i].equals("--warmup"))
+                warmup = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--iterations"))
+                iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--filter"))
+                filter = args[++i];
+            else {
+                int value = generator.parseOption(args, i);
+                if (value < 0) {
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(-1);
+                }
+                i = value;
+            }
+        }
+        if (dir == null) {
+            dir = File.createTempFile("synthetic", "");
+            dir.delete();
+        }
+        dir.mkdirs();
+
+        // generate and compile the series
+        String[] classNames = new String[sizes.length];
+        List<String> compilerArgs = new ArrayList<String>();
+        String target = System.getProperty("optimize.synthetic.target", "1.5");
+        compilerArgs.addAll(Arrays.asList("-nowarn", "-source", target, "-target", target,
+                                          "-d", dir.getPath()));
+        for (int i = 0; i < sizes.length; i++) {
+            classNames[i] = "Synthetic" + sizes[i];
+            generator.setStatements(sizes[i]);
+            compilerArgs.add(generator.write(dir, classNames[i]).getPath());
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            System.err.println("No Java compiler available; run with a JDK");
+            System.exit(-1);
+        }
+        if (compiler.run(null, null, null, compilerArgs.toArray(new String[0])) != 0) {
+            System.err.println("Error compiling the synthetic classes in " + dir);
+            System.exit(-1);
+        }
+
+        // build the CFGs
+        PrimordialClassLoader.loader.addToClasspath(dir.getPath());
+        List<List<ControlFlowGraph>> series = new ArrayList<List<ControlFlowGraph>>();
+        int[] quads = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            jq_Class[] classes = { (jq_Class)Helper.load(classNames[i]) };
+            List<ControlFlowGraph> cfgs = ParallelDriver.getCFGs(classes);
+            for (ControlFlowGraph cfg : cfgs)
+                quads[i] += countQuads(cfg);
+            series.add(cfgs);
+        }
+
+        System.out.println(String.format("%-40s %10s %8s %12s %10s %14s %10s",
+                                         "case", "statements", "quads", "us/method",
+                                         "exponent", "B/method", "exponent"));
+        for (Benchmark.Case c : Benchmark.getCases()) {
+            if (filter != null && c.getName().indexOf(filter) < 0)
+                continue;
+            double lastMicros = 0, lastBytes = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                Benchmark.Result result = Benchmark.measure(c, series.get(i),
+                                                            warmup, iterations);
+                double micros = result.nanos / 1e3 / result.methods;
+                double bytes = (double)result.allocatedBytes / result.methods;
+                System.out.println(String.format("%-40s %10d %8d %12.1f %10s %14.0f %10s",
+                                                 c.getName(), sizes[i], quads[i], micros,
+                                                 exponent(i, quads, lastMicros, micros),
+                                                 bytes,
+                                                 exponent(i, quads, lastBytes, bytes)));
+                lastMicros = micros;
+                lastBytes = bytes;
+            }
+        }
+    }
+
+    private static int countQuads(ControlFlowGraph cfg) {
+        int count = 0;
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); qit.next())
+            count++;
+        return count;
+    }
+
+    /**
+     * @return the log-log slope of a measurement between size i-1 and i,
+     * or "-" for the first size
+     */
+    private static String exponent(int i, int[] quads, double last, double current) {
+        if (i == 0 || last <= 0 || current <= 0 || quads[i] == quads[i - 1])
+            return "-";
+        double slope = Math.log(current / last) / Math.log((double)quads[i] / quads[i - 1]);
+        return String.format("%.2f", slope);
+    }
+}
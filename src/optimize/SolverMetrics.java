@@ -0,0 +1,81 @@
+package optimize;
+
+/**
+ * The counters and timings of one solver run over one method.
+ */
+public class SolverMetrics {
+    String method;
+    String analysis;
+    String solver;
+    int quads;
+    long rounds = -1;
+    long quadVisits;
+    long meets;
+    long copies;
+    long preprocessNanos;
+    long solveNanos;
+    long postprocessNanos;
+
+    /** @return the method, as its class, name and descriptor */
+    public String getMethod() { return method; }
+    /** @return the class name of the analysis */
+    public String getAnalysis() { return analysis; }
+    /** @return the class name of the solver */
+    public String getSolver() { return solver; }
+    /** @return the number of quads in the method */
+    public int getQuads() { return quads; }
+    /** @return the number of rounds the solver took to reach the fixed
+     * point, -1 if the solver does not report it */
+    public long getRounds() { return rounds; }
+    /** @return the number of times a quad was processed */
+    public long getQuadVisits() { return quadVisits; }
+    /** @return the number of neighbor values the solver met with */
+    public long getMeets() { return meets; }
+    /** @return the number of values the solver stored into the analysis */
+    public long getCopies() { return copies; }
+    public long getPreprocessNanos() { return preprocessNanos; }
+    public long getSolveNanos() { return solveNanos; }
+    public long getPostprocessNanos() { return postprocessNanos; }
+    public long getTotalNanos() { return preprocessNanos + solveNanos + postprocessNanos; }
+
+    /**
+     * @return the metrics as a single-line JSON object
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"method\":").append(quote(method));
+        sb.append(",\"analysis\":").append(quote(analysis));
+        sb.append(",\"solver\":").append(quote(solver));
+        sb.append(",\"quads\":").append(quads);
+        sb.append(",\"rounds\":").append(rounds);
+        sb.append(",\"quadVisits\":").append(quadVisits);
+        sb.append(",\"meets\":").append(meets);
+        sb.append(",\"copies\":").append(copies);
+        sb.append(",\"preprocessNanos\":").append(preprocessNanos);
+        sb.append(",\"solveNanos\":").append(solveNanos);
+        sb.append(",\"postprocessNanos\":").append(postprocessNanos);
+        return sb.append("}").toString();
+    }
+
+    private static String quote(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int)c));
+            else
+                sb.append(c);
+        }
+        return sb.append("\"").toString();
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + analysis + "/" + solver + ": " + quads + " quads, "
+            + rounds + " rounds, " + quadVisits + " visits, " + meets + " meets, "
+            + copies + " copies, " + getTotalNanos() / 1000 + " us";
+    }
+}
@@ -0,0 +1,375 @@
+package optimize;
+
+import java.util.*;
+import joeq.Class.jq_Class;
+import joeq.Compiler.Quad.*;
+import joeq.Compiler.Quad.Operand.RegisterOperand;
+import joeq.Compiler.Quad.RegisterFactory.Register;
+import joeq.Main.Helper;
+import jwutil.math.BitString;
+
+/**
+ * Removes redundant null checks like {@link NullChecker}, but tracks
+ * values instead of registers. The registers are renamed into SSA values
+ * on the fly by a walk over the {@link DominatorTree}, with phi values
+ * placed at the iterated dominance frontiers of their definitions and
+ * null checks; the CFG itself is not modified. A move makes its destination the same
+ * value as its source. A null check of a value makes it checked in the
+ * rest of the dominator subtree, so only the checked values are kept, not
+ * a register set per quad. Phi values start out checked. A single walk
+ * records which phi arguments are unchecked at the end of their
+ * predecessor, and which are only checked if another phi is; the
+ * unchecked phis are then propagated along these def-use edges with a
+ * worklist. Exception handler entries start with fresh, unchecked values,
+ * so they count as definitions of every register when the phis are
+ * placed.
+ */
+public class SparseNullChecker implements ControlFlowGraphVisitor, CFGInfo.User {
+
+    private CFGInfo info;
+
+    public void setCFGInfo(CFGInfo info) { this.info = info; }
+
+    /**
+     * Remove the redundant null checks of a control flow graph.
+     * @param cfg the control flow graph
+     */
+    public void visitCFG(ControlFlowGraph cfg) {
+        boolean[] redundant = solve(cfg);
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            if (redundant[q.getID()])
+                qit.remove();
+        }
+    }
+
+    /**
+     * Find the redundant null checks without removing them.
+     * @param cfg the control flow graph
+     * @return the redundant null checks, by increasing quad ID
+     */
+    public List<Quad> findRedundantChecks(ControlFlowGraph cfg) {
+        boolean[] redundant = solve(cfg);
+        Quad[] byID = new Quad[redundant.length];
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            byID[q.getID()] = q;
+        }
+        List<Quad> result = new ArrayList<Quad>();
+        for (int id = 0; id < redundant.length; id++)
+            if (redundant[id])
+                result.add(byID[id]);
+        return result;
+    }
+
+    private boolean[] solve(ControlFlowGraph cfg) {
+        info = CFGInfo.get(cfg, info);
+        return new Walk(info).solve();
+    }
+
+    /**
+     * The renaming walk over the dominator tree of one control flow
+     * graph.
+     */
+    private static class Walk {
+        private final DominatorTree tree;
+        private final RegisterNumbering numbering;
+
+        /** the register index and the phi number of the phis of each
+         * block, by block ID */
+        private final int[][] phiRegisters, phiNumbers;
+
+        /** whether each phi is checked; phis start out checked */
+        private final boolean[] phiChecked;
+
+        /** the phis with an argument that is only checked if a given phi
+         * is, as linked lists: the edges from phi p start at first[p] */
+        private int[] first, next = new int[16], dependent = new int[16];
+        private int edges;
+
+        /** the current value of each register */
+        private final int[] current;
+
+        /** whether each value is checked by a dominating null check */
+        private boolean[] checked;
+
+        /** the next free value; values below the number of phis are the
+         * phis */
+        private int nextValue;
+
+        /** the (register, previous value) pairs and the checked values
+         * to undo when the walk leaves a block */
+        private int[] renamed = new int[16], checks = new int[16];
+        private int renamedSize, checksSize;
+
+        /** the value checked by each null check, -1 if none; and whether
+         * a dominating null check already checked it; by quad ID */
+        private final int[] checkedValue;
+        private final boolean[] redundant;
+
+        Walk(CFGInfo info) {
+            tree = info.getDominatorTree();
+            numbering = info.getRegisterNumbering();
+            checkedValue = new int[info.getQuadIDLimit()];
+            redundant = new boolean[info.getQuadIDLimit()];
+            current = new int[numbering.size()];
+
+            // place the phis at the iterated frontiers of the blocks
+            // defining or null checking each register, so that a value
+            // checked on all paths into a join is merged there; the
+            // entry defines all registers, and so does each exception
+            // handler entry, which starts with fresh values
+            int nblocks = tree.getNumberOfBlocks();
+            BitString[] defBlocks = new BitString[numbering.size()];
+            for (BasicBlock bb : tree.getBlocks()) {
+                if (bb.isExceptionHandlerEntry())
+                    for (int r = 0; r < defBlocks.length; r++)
+                        addDefinition(defBlocks, r, bb);
+                for (int i = 0; i < bb.size(); i++) {
+                    Quad q = bb.getQuad(i);
+                    for (RegisterOperand def : q.getDefinedRegisters())
+                        addDefinition(defBlocks, def, bb);
+                    if (q.getOperator() instanceof Operator.NullCheck)
+                        for (RegisterOperand use : q.getUsedRegisters())
+                            addDefinition(defBlocks, use, bb);
+                }
+            }
+            List<List<Integer>> phis = new ArrayList<List<Integer>>(nblocks);
+            for (int b = 0; b < nblocks; b++)
+                phis.add(new ArrayList<Integer>());
+            for (int r = 0; r < defBlocks.length; r++) {
+                if (defBlocks[r] == null)
+                    continue;
+                BitString.ForwardBitStringIterator it =
+                    tree.getIteratedFrontier(defBlocks[r]).iterator();
+                while (it.hasNext()) {
+                    int b = it.nextIndex();
+                    if (!tree.getBlock(b).isExceptionHandlerEntry())
+                        phis.get(b).add(r);
+                }
+            }
+            phiRegisters = new int[nblocks][];
+            phiNumbers = new int[nblocks][];
+            int count = 0;
+            for (int b = 0; b < nblocks; b++) {
+                List<Integer> list = phis.get(b);
+                phiRegisters[b] = new int[list.size()];
+                phiNumbers[b] = new int[list.size()];
+                for (int k = 0; k < list.size(); k++) {
+                    phiRegisters[b][k] = list.get(k);
+                    phiNumbers[b][k] = count++;
+                }
+            }
+            phiChecked = new boolean[count];
+            Arrays.fill(phiChecked, true);
+            first = new int[count];
+            Arrays.fill(first, -1);
+            checked = new boolean[count + current.length];
+        }
+
+        private void addDefinition(BitString[] defBlocks, RegisterOperand op,
+                                   BasicBlock bb) {
+            addDefinition(defBlocks, numbering.indexOf(op.getRegister()), bb);
+        }
+
+        private void addDefinition(BitString[] defBlocks, int r, BasicBlock bb) {
+            if (defBlocks[r] == null) {
+                defBlocks[r] = new BitString(tree.getNumberOfBlocks());
+                defBlocks[r].set(tree.getCFG().entry().getID());
+            }
+            defBlocks[r].set(bb.getID());
+        }
+
+        /**
+         * Walk the dominator tree once, then demote the phis with an
+         * argument that is not checked.
+         * @return the redundant null checks, by quad ID
+         */
+        boolean[] solve() {
+            Arrays.fill(checkedValue, -1);
+            nextValue = phiChecked.length;
+            for (int r = 0; r < current.length; r++)
+                current[r] = newValue();
+
+            // depth-first over the tree, undoing each block on the way up
+            int depth = tree.getBlocks().size() + 1;
+            BasicBlock[] blocks = new BasicBlock[depth];
+            int[] child = new int[depth], renamedMark = new int[depth],
+                checksMark = new int[depth];
+            int sp = 0;
+            blocks[sp] = tree.getCFG().entry();
+            renamedMark[sp] = renamedSize;
+            checksMark[sp] = checksSize;
+            child[sp++] = 0;
+            enter(tree.getCFG().entry());
+            while (sp > 0) {
+                List<BasicBlock> children = tree.getChildren(blocks[sp - 1]);
+                if (child[sp - 1] < children.size()) {
+                    BasicBlock bb = children.get(child[sp - 1]++);
+                    blocks[sp] = bb;
+                    renamedMark[sp] = renamedSize;
+                    checksMark[sp] = checksSize;
+                    child[sp++] = 0;
+                    enter(bb);
+                } else {
+                    sp--;
+                    while (renamedSize > renamedMark[sp]) {
+                        renamedSize -= 2;
+                        current[renamed[renamedSize]] = renamed[renamedSize + 1];
+                    }
+                    while (checksSize > checksMark[sp])
+                        checked[checks[--checksSize]] = false;
+                }
+            }
+
+            // demote the phis depending on demoted phis
+            int[] worklist = new int[phiChecked.length];
+            int size = 0;
+            for (int p = 0; p < phiChecked.length; p++)
+                if (!phiChecked[p])
+                    worklist[size++] = p;
+            while (size > 0) {
+                for (int e = first[worklist[--size]]; e >= 0; e = next[e]) {
+                    int q = dependent[e];
+                    if (phiChecked[q]) {
+                        phiChecked[q] = false;
+                        worklist[size++] = q;
+                    }
+                }
+            }
+
+            for (int id = 0; id < redundant.length; id++) {
+                int v = checkedValue[id];
+                if (v >= 0 && v < phiChecked.length && phiChecked[v])
+                    redundant[id] = true;
+            }
+            return redundant;
+        }
+
+        private void enter(BasicBlock bb) {
+            int b = bb.getID();
+            if (bb.isExceptionHandlerEntry()) {
+                // the handler may be reached from the middle of a block
+                for (int r = 0; r < current.length; r++)
+                    define(r, newValue());
+            }
+            for (int k = 0; k < phiNumbers[b].length; k++)
+                define(phiRegisters[b][k], phiNumbers[b][k]);
+            for (int i = 0; i < bb.size(); i++) {
+                Quad q = bb.getQuad(i);
+                Operator op = q.getOperator();
+                if (op instanceof Operator.NullCheck && q.getUsedRegisters().size() == 1) {
+                    Register r = q.getUsedRegisters().get(0).getRegister();
+                    int v = current[numbering.indexOf(r)];
+                    checkedValue[q.getID()] = v;
+                    if (checked[v])
+                        redundant[q.getID()] = true;
+                    else
+                        check(v);
+                }
+                if (op instanceof Operator.Move
+                    && Operator.Move.getSrc(q) instanceof RegisterOperand) {
+                    // the destination holds the same value
+                    RegisterOperand src = (RegisterOperand)Operator.Move.getSrc(q);
+                    define(numbering.indexOf(Operator.Move.getDest(q).getRegister()),
+                           current[numbering.indexOf(src.getRegister())]);
+                } else {
+                    for (RegisterOperand def : q.getDefinedRegisters())
+                        define(numbering.indexOf(def.getRegister()), newValue());
+                }
+            }
+            // the arguments of the successors' phis
+            for (BasicBlock succ : bb.getSuccessors()) {
+                int s = succ.getID();
+                for (int k = 0; k < phiNumbers[s].length; k++) {
+                    int v = current[phiRegisters[s][k]];
+                    if (checked[v])
+                        continue;
+                    if (v < phiChecked.length)
+                        addDependent(v, phiNumbers[s][k]);
+                    else
+                        phiChecked[phiNumbers[s][k]] = false;
+                }
+            }
+        }
+
+        private void addDependent(int p, int q) {
+            if (edges == next.length) {
+                next = Arrays.copyOf(next, 2 * edges);
+                dependent = Arrays.copyOf(dependent, 2 * edges);
+            }
+            dependent[edges] = q;
+            next[edges] = first[p];
+            first[p] = edges++;
+        }
+
+        private int newValue() {
+            if (nextValue == checked.length)
+                checked = Arrays.copyOf(checked, 2 * checked.length);
+            return nextValue++;
+        }
+
+        private void define(int r, int v) {
+            if (renamedSize == renamed.length)
+                renamed = Arrays.copyOf(renamed, 2 * renamed.length);
+            renamed[renamedSize++] = r;
+            renamed[renamedSize++] = current[r];
+            current[r] = v;
+        }
+
+        private void check(int v) {
+            if (checksSize == checks.length)
+                checks = Arrays.copyOf(checks, 2 * checks.length);
+            checks[checksSize++] = v;
+            checked[v] = true;
+        }
+    }
+
+    /**
+     * Compare with {@link NullChecker}: for every method, print the null
+     * checks each finds redundant, and the ones only NullChecker finds.
+     * Those are checks of values NullChecker knows are non-null without a
+     * check: fresh objects, the receiver, casts of checked values and
+     * registers compared with null.
+     * @param args the names of the classes to compare on
+     */
+    public static void main(String[] args) {
+        jq_Class[] classes = new jq_Class[args.length];
+        for (int i = 0; i < classes.length; i++)
+            classes[i] = (jq_Class)Helper.load(args[i]);
+
+        int denseTotal = 0, sparseTotal = 0, denseOnlyTotal = 0;
+        for (ControlFlowGraph cfg : ParallelDriver.getCFGs(classes)) {
+            SortedSet<Integer> sparse = new TreeSet<Integer>();
+            for (Quad q : new SparseNullChecker().findRedundantChecks(cfg))
+                sparse.add(q.getID());
+
+            // NullChecker removes its redundant checks
+            SortedSet<Integer> dense = nullChecks(cfg);
+            ExFlow.Solver solver = new ExSolver();
+            solver.registerAnalysis(new NullChecker());
+            solver.visitCFG(cfg);
+            dense.removeAll(nullChecks(cfg));
+
+            SortedSet<Integer> denseOnly = new TreeSet<Integer>(dense);
+            denseOnly.removeAll(sparse);
+            System.out.println(cfg.getMethod().getName() + " dense: " + dense
+                               + " sparse: " + sparse + " dense only: " + denseOnly);
+            denseTotal += dense.size();
+            sparseTotal += sparse.size();
+            denseOnlyTotal += denseOnly.size();
+        }
+        System.out.println("total dense: " + denseTotal + " sparse: " + sparseTotal
+                           + " dense only: " + denseOnlyTotal);
+    }
+
+    private static SortedSet<Integer> nullChecks(ControlFlowGraph cfg) {
+        SortedSet<Integer> result = new TreeSet<Integer>();
+        for (QuadIterator qit = new QuadIterator(cfg); qit.hasNext(); ) {
+            Quad q = qit.next();
+            if (q.getOperator() instanceof Operator.NullCheck)
+                result.add(q.getID());
+        }
+        return result;
+    }
+}
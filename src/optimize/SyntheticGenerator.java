@@ -0,0 +1,240 @@
+package optimize;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Generates Java source for synthetic methods of configurable size and
+ * shape, for measuring how the solvers scale.
+ *
+ * Usage: java optimize.SyntheticGenerator [--statements n] [--methods n]
+ *        [--loop-depth n] [--fan-out n] [--registers n]
+ *        [--null-density p] [--seed n] dir ClassName
+ */
+public class SyntheticGenerator {
+
+    /** the number of statements in each method */
+    private int statements = 100;
+    /** the number of methods in the class */
+    private int methods = 1;
+    /** the maximum nesting depth of loops */
+    private int loopDepth = 2;
+    /** the number of successors of a branch; 2 gives if/else, more
+     * gives a switch */
+    private int fanOut = 2;
+    /** the number of int locals in each method */
+    private int registers = 16;
+    /** the fraction of statements that dereference an array */
+    private double nullDensity = 0.3;
+    /** the seed of the random shape */
+    private long seed = 1;
+
+    private Random random;
+    private StringBuilder out;
+    private int loopVariables;
+
+    public void setStatements(int statements) { this.statements = statements; }
+    public void setMethods(int methods) { this.methods = methods; }
+    public void setLoopDepth(int loopDepth) { this.loopDepth = loopDepth; }
+    public void setFanOut(int fanOut) { this.fanOut = Math.max(2, fanOut); }
+    public void setRegisters(int registers) { this.registers = Math.max(2, registers); }
+    public void setNullDensity(double nullDensity) { this.nullDensity = nullDensity; }
+    public void setSeed(long seed) { this.seed = seed; }
+
+    /** @return the number of int[] locals in each method */
+    private int arrays() { return Math.max(1, registers / 4); }
+
+    /**
+     * Generate the source of a class. The same settings and class name
+     * always give the same source.
+     * @param className the name of the class, without a package
+     * @return the Java source of the class
+     */
+    public String generate(String className) {
+        random = new Random(seed);
+        out = new StringBuilder();
+        out.append("public class ").append(className).append(" {\n");
+        for (int m = 0; m < methods; m++) {
+            loopVariables = 0;
+            out.append("    public static int m").append(m)
+               .append("(int p0, int p1, int[] q0, int[] q1) {\n");
+            for (int i = 0; i < registers; i++)
+                line(2, "int v" + i + " = " + (i % 2 == 0 ? "p0" : "p1") + " + " + i + ";");
+            for (int i = 0; i < arrays(); i++)
+                line(2, "int[] a" + i + " = " + (i % 2 == 0 ? "q0" : "q1") + ";");
+            block(2, 0, statements);
+            StringBuilder sum = new StringBuilder("return v0");
+            for (int i = 1; i < registers; i++)
+                sum.append(" + v").append(i);
+            line(2, sum.append(";").toString());
+            out.append("    }\n");
+        }
+        out.append("}\n");
+        return out.toString();
+    }
+
+    /**
+     * Emit a sequence of statements.
+     * @param indent the indentation level
+     * @param depth the current loop nesting depth
+     * @param budget the number of statements to emit
+     */
+    private void block(int indent, int depth, int budget) {
+        while (budget > 0) {
+            double r = random.nextDouble();
+            if (budget > 2 && r < 0.1 && depth < loopDepth) {
+                int inner = 1 + random.nextInt(budget - 1);
+                String i = "i" + (loopVariables++);
+                line(indent, "for (int " + i + " = 0; " + i + " < (" + var() + " & 15); "
+                             + i + "++) {");
+                block(indent + 1, depth + 1, inner - 1);
+                line(indent, "}");
+                budget -= inner;
+            } else if (budget > fanOut && r < 0.2) {
+                int inner = 1 + random.nextInt(budget - 1);
+                branch(indent, depth, inner - 1);
+                budget -= inner;
+            } else {
+                statement(indent);
+                budget--;
+            }
+        }
+    }
+
+    /**
+     * Emit an if/else or a switch with fanOut successors, spreading the
+     * statements over the arms.
+     */
+    private void branch(int indent, int depth, int budget) {
+        int arm = budget / fanOut;
+        int rest = budget - arm * fanOut;
+        if (fanOut == 2) {
+            line(indent, "if (" + var() + " < " + var() + ") {");
+            block(indent + 1, depth, arm + rest);
+            line(indent, "} else {");
+            block(indent + 1, depth, arm);
+            line(indent, "}");
+            return;
+        }
+        line(indent, "switch (" + var() + " % " + (fanOut - 1) + ") {");
+        for (int k = 0; k < fanOut; k++) {
+            line(indent, k < fanOut - 1 ? "case " + k + ":" : "default:");
+            block(indent + 1, depth, arm + (k == 0 ? rest : 0));
+            line(indent + 1, "break;");
+        }
+        line(indent, "}");
+    }
+
+    /** Emit a straight-line statement. */
+    private void statement(int indent) {
+        if (random.nextDouble() < nullDensity) {
+            switch (random.nextInt(4)) {
+            case 0:
+                line(indent, var() + " = " + array() + "[" + var() + " & 7] + " + var() + ";");
+                break;
+            case 1:
+                line(indent, array() + "[" + var() + " & 7] = " + var() + ";");
+                break;
+            case 2:
+                line(indent, var() + " = " + array() + ".length;");
+                break;
+            default:
+                String a = array();
+                line(indent, "if (" + a + " == null) " + a + " = new int[8];");
+            }
+            return;
+        }
+        switch (random.nextInt(5)) {
+        case 0:
+            line(indent, var() + " = " + var() + " + " + var() + ";");
+            break;
+        case 1:
+            line(indent, var() + " = " + var() + " * " + random.nextInt(10) + ";");
+            break;
+        case 2:
+            line(indent, var() + " = " + random.nextInt(100) + ";");
+            break;
+        case 3:
+            line(indent, var() + " = " + var() + ";");
+            break;
+        default:
+            line(indent, array() + " = " + array() + ";");
+        }
+    }
+
+    private String var() { return "v" + random.nextInt(registers); }
+
+    private String array() { return "a" + random.nextInt(arrays()); }
+
+    private void line(int indent, String s) {
+        for (int i = 0; i < indent; i++)
+            out.append("    ");
+        out.append(s).append('\n');
+    }
+
+    /**
+     * Write the source of a class to <tt>dir/className.java</tt>.
+     * @param dir the directory to write to
+     * @param className the name of the class
+     * @return the written file
+     */
+    public File write(File dir, String className) throws IOException {
+        File file = new File(dir, className + ".java");
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(generate(className));
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * Apply a command line option.
+     * @param args the arguments
+     * @param i the index of the option
+     * @return the index of the option's value, or -1 if the option is
+     * not a generator option
+     */
+    int parseOption(String[] args, int i) {
+        String option = args[i];
+        if (option.equals("--statements"))
+            setStatements(Integer.parseInt(args[++i]));
+        else if (option.equals("--methods"))
+            setMethods(Integer.parseInt(args[++i]));
+        else if (option.equals("--loop-depth"))
+            setLoopDepth(Integer.parseInt(args[++i]));
+        else if (option.equals("--fan-out"))
+            setFanOut(Integer.parseInt(args[++i]));
+        else if (option.equals("--registers"))
+            setRegisters(Integer.parseInt(args[++i]));
+        else if (option.equals("--null-density"))
+            setNullDensity(Double.parseDouble(args[++i]));
+        else if (option.equals("--seed"))
+            setSeed(Long.parseLong(args[++i]));
+        else
+            return -1;
+        return i;
+    }
+
+    public static void main(String[] args) throws IOException {
+        SyntheticGenerator generator = new SyntheticGenerator();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            int value = generator.parseOption(args, i);
+            if (value < 0) {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(-1);
+            }
+            i = value;
+        }
+        if (args.length - i != 2) {
+            System.err.println("Usage: java optimize.SyntheticGenerator [options] dir ClassName");
+            System.exit(-1);
+        }
+        System.out.println("Wrote " + generator.write(new File(args[i]), args[i + 1]));
+    }
+}
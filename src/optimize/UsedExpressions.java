@@ -0,0 +1,34 @@
+package optimize;
+
+import joeq.Compiler.Quad.Quad;
+
+/**
+ * Used expressions: an expression is used after a quad if some path
+ * from there uses it before its next latest placement. A placement is
+ * only worth making if the expression is used after it, and a use keeps
+ * its own computation if the expression is not used after it.
+ * <p>
+ * Backward; In = (use | Out) & ~latest; meet is union; nothing is used
+ * at the exit.
+ */
+public class UsedExpressions extends ExpressionAnalysis {
+
+    private final PostponableExpressions postponable;
+
+    /**
+     * @param postponable the postponable expressions, solved for the
+     * same CFG before this analysis runs
+     */
+    public UsedExpressions(PostponableExpressions postponable) {
+        this.postponable = postponable;
+    }
+
+    public boolean isForward() { return false; }
+
+    protected boolean isUnion() { return true; }
+
+    protected void transfer(Quad q, ExpressionSet val) {
+        val.add(expressions.indexOf(q));
+        val.removeAll(postponable.latest(q));
+    }
+}
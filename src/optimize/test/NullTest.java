@@ -109,9 +109,67 @@ public class NullTest {
         arr[0].toString(); 
     }
     
+    public static void Test4(boolean q) {
+        Integer a = null;
+
+        try {
+            a = getInteger(q);
+            a.toString();
+        } catch (RuntimeException e) {
+        }
+
+        a.toString();
+    }
+    
+    public static void Test5(Integer b) {
+        Integer a = new Integer(5);
+        a.toString();
+
+        a = b;
+        a.toString();
+        a.toString();
+
+        a = null;
+        try {
+            a.toString();
+        } catch (NullPointerException e) {
+        }
+    }
+    
+    public static void checkLast(long n, Integer a, Integer b) {
+        b.toString();
+    }
+
+    public static void Test6(Integer a, Integer b) {
+        checkLast(0L, a, b);
+        a.toString();
+        b.toString();
+    }
+
+    public static int Test7(int[] a, int k) {
+        int s = 0;
+        for (;;) {
+            s++;
+            while (k > 0) { }
+            s += a.length;
+            if (s > 100)
+                return s;
+        }
+    }
+
+    public static void Test8(Integer a) {
+        int x = 1;
+        while (x > 0)
+            a.toString();
+    }
+    
     public static void main(String[] args) {        
         Test1(true, new Integer(0));        
         Test2(true, new Integer(0));        
         Test3(true, new Integer(0));                
+        Test4(true);
+        Test5(new Integer(0));
+        Test6(new Integer(0), new Integer(1));
+        Test7(new int[10], 0);
     }
 }